@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * BackgroundWriter is the daemon thread of a BufferPool that writes dirty
+ * pages to disk ahead of need, so that evictions find clean victims and
+ * commits find little left to write.
+ * <p>
+ * Every round it asks the pool to write whatever dirty pages the pool's
+ * steal/force policy allows; the pool sorts them by table and page number
+ * and writes each run of adjacent pages with one sequential write. It also
+ * saves the free space maps of tables changed by committed transactions,
+ * see {@link BufferPool#saveCommittedFreeSpaceMaps}. The thread
+ * is started on demand when pages start getting dirtied and exits by itself
+ * after a while without work.
+ *
+ * @see BufferPool#writeDirtyPages
+ */
+public class BackgroundWriter implements Runnable {
+
+    /** Time between two rounds of the writer, in milliseconds. */
+    public static final long INTERVAL_MS = 100;
+
+    /** Number of rounds without any dirty page before the thread exits. */
+    private static final int MAX_IDLE_ROUNDS = 50;
+
+    BackgroundWriter(BufferPool pool) {
+        this.pool = pool;
+        this.thread = null;
+        this.stopped = false;
+        this.wakeRequested = false;
+    }
+
+    /** Make sure the writer thread is running, unless it was shut down. */
+    public synchronized void start() {
+        if (this.thread == null && !this.stopped) {
+            this.thread = new Thread(this, "simpledb-writer");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+    }
+
+    /** Ask for a round right away instead of at the next interval. */
+    public synchronized void wakeUp() {
+        start();
+        this.wakeRequested = true;
+        notifyAll();
+    }
+
+    /** Stop the writer thread for good. Dirty pages are left as they are. */
+    public synchronized void shutdown() {
+        this.stopped = true;
+        notifyAll();
+    }
+
+    public void run() {
+        int idleRounds = 0;
+        while (true) {
+            synchronized (this) {
+                if (!this.wakeRequested && !this.stopped) {
+                    try {
+                        wait(INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        this.stopped = true;
+                    }
+                }
+                this.wakeRequested = false;
+                if (this.stopped || idleRounds >= MAX_IDLE_ROUNDS) {
+                    this.thread = null;
+                    return;
+                }
+            }
+            try {
+                int written = this.pool.writeDirtyPages();
+                idleRounds = written == 0 ? idleRounds + 1 : 0;
+                this.pool.saveCommittedFreeSpaceMaps();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (RuntimeException e) {
+                // e.g. the table of a dirty page was removed from the catalog
+                Debug.log("background writer round failed: %s", e);
+            }
+        }
+    }
+
+    private final BufferPool pool;
+    private Thread thread;
+    private boolean stopped;
+    private boolean wakeRequested;
+}
@@ -1,8 +1,17 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.channels.CompletionHandler;
 
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -11,7 +20,39 @@ import java.util.concurrent.ConcurrentHashMap;
  * <p>
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
+ * locks to read/write the page. Locks are page-level shared/exclusive locks
+ * handed out by a {@link LockManager} and held until the transaction
+ * completes (strict two-phase locking).
+ * <p>
+ * By default dirty pages stay in the pool until their transaction completes
+ * (NO STEAL), and commit writes all pages of the transaction (FORCE). With
+ * STEAL, turned on by {@link #setFlushPolicy}, they may be written out
+ * earlier; the committed image of such a page is kept so an abort can put it
+ * back.
+ * <p>
+ * A {@link BackgroundWriter} thread writes dirty pages ahead of need. All
+ * writes go out sorted by table and page number, with runs of adjacent pages
+ * coalesced into one sequential write.
+ * <p>
+ * Page I/O is asynchronous, see {@link HeapFile#readPagesAsync}: reads and
+ * writes are issued with a future each and complete on their own, so many
+ * of them are outstanding at once. A getPage miss is a wait on the future
+ * of its read, shared with any other reader of the page.
+ * <p>
+ * The pool holds at most numPages pages. When it is full, the configured
+ * {@link EvictionPolicy} picks a victim, which is flushed if dirty and then
+ * dropped to make room. The capacity can be changed at runtime with
+ * {@link #setNumPages}, and tables can be given a minimum and maximum number
+ * of frames with {@link #setTableQuota}. Frames pinned by {@link #getPage} are never
+ * evicted until the matching {@link #unpinPage}. What the pool does is counted in its
+ * {@link BufferPoolStats}. Sequential scans of tables larger than the pool read
+ * their misses into a private {@link ScanRing} instead, so they do not push
+ * the pages of other queries out.
+ * <p>
+ * Optionally the pool runs off-heap: clean pages live in a preallocated
+ * {@link FrameArena} outside the Java heap and are decoded on every access.
+ * Pages fetched READ_WRITE are kept decoded on the heap until the transaction
+ * that fetched them completes, so changes always apply to one shared copy.
  * 
  * @Threadsafe, all fields are final
  */
@@ -26,14 +67,341 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Longest run of adjacent pages written with a single write. */
+    private static final int MAX_WRITE_RUN = 64;
+
+    /**
+     * Installs pages read asynchronously. Installing may flush a victim and
+     * wait for the write, so it cannot run on an I/O completion thread.
+     */
+    private static final ExecutorService INSTALLER = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-install");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** Orders pages by table, then page number. */
+    private static final Comparator<Page> PAGE_ORDER = new Comparator<Page>() {
+        public int compare(Page a, Page b) {
+            PageId x = a.getId();
+            PageId y = b.getId();
+            if (x.getTableId() != y.getTableId()) {
+                return x.getTableId() < y.getTableId() ? -1 : 1;
+            }
+            return x.pageNumber() < y.pageNumber() ? -1 : (x.pageNumber() == y.pageNumber() ? 0 : 1);
+        }
+    };
+
+    /** Name of the eviction policy used when none is given. */
+    public static final String DEFAULT_EVICTION_POLICY = "clock";
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, newEvictionPolicy(DEFAULT_EVICTION_POLICY));
+    }
+
+    /** Frames a table is guaranteed and allowed; see setTableQuota. */
+    private static class TableQuota {
+        final int minPages;
+        final int maxPages;
+
+        TableQuota(int minPages, int maxPages) {
+            this.minPages = minPages;
+            this.maxPages = maxPages;
+        }
+    }
+
+    /**
+     * Eviction candidates: unpinned resident frames, optionally only clean
+     * ones, only those of one table, or only those whose table stays at or
+     * above its minimum without them.
+     */
+    private class Victims implements EvictionPolicy.Candidates {
+        Victims(boolean cleanOnly, int tableId, boolean honorMinimums) {
+            this.cleanOnly = cleanOnly;
+            this.tableId = tableId;
+            this.honorMinimums = honorMinimums;
+        }
+
+        public boolean isEvictable(PageId pid) {
+            if (pins.isPinned(pid)) {
+                return false;
+            }
+            if (this.tableId != ANY_TABLE && pid.getTableId() != this.tableId) {
+                return false;
+            }
+            if (this.honorMinimums && atMinimum(pid.getTableId())) {
+                return false;
+            }
+            Page page = pages.get(pid);
+            if (page == null) {
+                return frames.containsKey(pid);
+            }
+            return this.cleanOnly ? page.isDirty() == null : mayWrite(page);
+        }
+
+        private final boolean cleanOnly;
+        private final int tableId;
+        private final boolean honorMinimums;
+    }
+
+    /** Where an off-heap pool keeps a resident page. */
+    private static class Frame {
+        /** frame number in the arena, or -1 if the page is kept on the heap */
+        final int slot;
+
+        Frame(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts
+     * according to the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the policy choosing which page to evict when the pool is full
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
+        this(numPages, policy, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicts according
+     * to the given policy and optionally keeps clean pages off-heap.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the policy choosing which page to evict when the pool is full
+     * @param offHeap if true, allocate an off-heap arena of numPages frames
+     */
+    public BufferPool(int numPages, EvictionPolicy policy, boolean offHeap) {
+        if (numPages < 1) {
+            throw new IllegalArgumentException("a buffer pool needs at least one page");
+        }
         this.numPages = numPages;
+        this.quotas = new ConcurrentHashMap<Integer, TableQuota>();
+        this.residentByTable = new HashMap<Integer, Integer>();
         this.pages = new ConcurrentHashMap<PageId, Page>();
+        this.arena = offHeap ? new FrameArena(numPages, pageSize) : null;
+        this.frames = new ConcurrentHashMap<PageId, Frame>();
+        this.loading = new ConcurrentHashMap<PageId, FutureTask<Page>>();
+        this.lockManager = new LockManager();
+        this.pins = new PinTable();
+        this.undoImages = new ConcurrentHashMap<TransactionId, Map<PageId, Page>>();
+        this.policy = policy;
+        this.policy.setCapacity(numPages);
+        this.ioLock = new Object();
+        this.steal = false;
+        this.force = true;
+        this.writer = new BackgroundWriter(this);
+        this.writeEpoch = new AtomicLong();
+        this.unsavedMaps = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        this.stats = new BufferPoolStats(this);
+        this.scanRingThreshold = -1;
+        this.scanRingSize = ScanRing.DEFAULT_SIZE;
+        // in order of preference: a clean victim costs no I/O, and table
+        // minimums are only broken if nothing else can go
+        this.victims = new Victims[] {
+            new Victims(true, ANY_TABLE, true),
+            new Victims(false, ANY_TABLE, true),
+            new Victims(true, ANY_TABLE, false),
+            new Victims(false, ANY_TABLE, false),
+        };
+    }
+
+    /**
+     * Changes the capacity of the pool without dropping cached pages, except
+     * those that no longer fit when it shrinks. If too many of them are
+     * pinned, the pool stays over capacity until they are unpinned and
+     * evicted by later misses.
+     *
+     * @param numPages the new maximum number of pages in this buffer pool
+     */
+    public synchronized void setNumPages(int numPages) {
+        if (numPages < 1) {
+            throw new IllegalArgumentException("a buffer pool needs at least one page");
+        }
+        if (this.arena != null) {
+            this.arena.grow(numPages);
+        }
+        this.numPages = numPages;
+        this.policy.setCapacity(numPages);
+        while (residentCount() > numPages) {
+            PageId victim = chooseVictim(this.victims);
+            if (victim == null) {
+                break;
+            }
+            try {
+                evict(victim);
+            } catch (DbException e) {
+                Debug.log("shrinking the buffer pool: %s", e.getMessage());
+                break;
+            }
+        }
+    }
+
+    /**
+     * Gives a table a share of the pool. Eviction leaves the last minPages
+     * pages of the table alone as long as it finds any other victim, and a
+     * table at maxPages replaces its own pages instead of growing further.
+     * Both are soft limits: pinned pages are never evicted to meet them.
+     *
+     * @param tableId the table
+     * @param minPages frames reserved for the table, 0 for none
+     * @param maxPages frames the table may use at most, 0 for no limit
+     */
+    public void setTableQuota(int tableId, int minPages, int maxPages) {
+        if (minPages < 0 || maxPages < 0 || (maxPages > 0 && minPages > maxPages)) {
+            throw new IllegalArgumentException("invalid quota: min " + minPages + ", max " + maxPages);
+        }
+        if (minPages == 0 && maxPages == 0) {
+            this.quotas.remove(tableId);
+        } else {
+            this.quotas.put(tableId, new TableQuota(minPages, maxPages));
+        }
+    }
+
+    /**
+     * Gives a table, by name, a share of the pool.
+     *
+     * @see #setTableQuota(int, int, int)
+     * @throws NoSuchElementException if the table is not in the catalog
+     */
+    public void setTableQuota(String tableName, int minPages, int maxPages) {
+        setTableQuota(Database.getCatalog().getTableId(tableName), minPages, maxPages);
+    }
+
+    /** @return the number of pages of the table resident in the pool */
+    public synchronized int getResidentPages(int tableId) {
+        Integer n = this.residentByTable.get(tableId);
+        return n == null ? 0 : n;
+    }
+
+    /**
+     * Sets when dirty pages may reach disk.
+     *
+     * @param steal if true, dirty pages of running transactions may be
+     *   written out by eviction and the background writer; if false only
+     *   pages of completed transactions are, and eviction fails when every
+     *   page is dirty
+     * @param force if true, commit writes the pages of the transaction before
+     *   returning; if false they stay dirty for the background writer
+     */
+    public void setFlushPolicy(boolean steal, boolean force) {
+        this.steal = steal;
+        this.force = force;
+    }
+
+    /** @return true if dirty pages of running transactions may be written */
+    public boolean isSteal() {
+        return this.steal;
+    }
+
+    /** @return true if commit writes the pages of the transaction */
+    public boolean isForce() {
+        return this.force;
+    }
+
+    /**
+     * Sets when sequential scans use a private ring of frames instead of the
+     * shared pool.
+     *
+     * @param thresholdPages scans of tables with more pages than this use a
+     *   ring; the default is the size of the pool
+     * @param ringPages the number of frames of each ring
+     */
+    public void setScanRing(int thresholdPages, int ringPages) {
+        if (ringPages < 1) {
+            throw new IllegalArgumentException("a scan ring needs at least one frame");
+        }
+        this.scanRingThreshold = thresholdPages;
+        this.scanRingSize = ringPages;
+    }
+
+    /** @return the table size, in pages, above which scans use a ring */
+    public int getScanRingThreshold() {
+        int threshold = this.scanRingThreshold;
+        return threshold < 0 ? this.numPages : threshold;
+    }
+
+    /**
+     * Called by a sequential scan when it opens.
+     *
+     * @param relationPages the number of pages of the table being scanned
+     * @return a new ring for the scan, or null if the table is small enough
+     *   to scan through the shared pool
+     */
+    public ScanRing newScanRing(int relationPages) {
+        if (relationPages <= getScanRingThreshold()) {
+            return null;
+        }
+        return new ScanRing(this.scanRingSize);
+    }
+
+    /**
+     * Stops the background writer of this pool. Dirty pages stay in memory;
+     * call flushAllPages first to keep them.
+     */
+    public void shutdown() {
+        this.writer.shutdown();
+    }
+
+    /**
+     * Creates one of the built-in eviction policies by name.
+     *
+     * @param name "clock", "lru-k" (or "lru-2", "lru-3", ...) or "2q"
+     * @throws IllegalArgumentException if the name is not recognized
+     */
+    public static EvictionPolicy newEvictionPolicy(String name) {
+        String n = name.trim().toLowerCase();
+        if (n.equals("clock")) {
+            return new ClockEvictionPolicy();
+        } else if (n.equals("lru-k") || n.equals("lruk")) {
+            return new LruKEvictionPolicy();
+        } else if (n.startsWith("lru-")) {
+            try {
+                return new LruKEvictionPolicy(Integer.parseInt(n.substring(4)));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Unknown eviction policy " + name);
+            }
+        } else if (n.equals("2q")) {
+            return new TwoQueueEvictionPolicy();
+        }
+        throw new IllegalArgumentException("Unknown eviction policy " + name);
+    }
+
+    /** @return the maximum number of pages this buffer pool caches */
+    public int getNumPages() {
+        return this.numPages;
+    }
+
+    /** @return true if this pool keeps clean pages in an off-heap arena */
+    public boolean isOffHeap() {
+        return this.arena != null;
+    }
+
+    /** @return the statistics of this buffer pool */
+    public BufferPoolStats getStats() {
+        return this.stats;
+    }
+
+    /** @return a snapshot of the ids of the resident pages */
+    Set<PageId> residentPageIds() {
+        Set<PageId> ids = new HashSet<PageId>(this.pages.keySet());
+        ids.addAll(this.frames.keySet());
+        return ids;
+    }
+
+    /** @return the eviction policy of this buffer pool */
+    public EvictionPolicy getEvictionPolicy() {
+        return this.policy;
     }
     
     public static int getPageSize() {
@@ -55,6 +423,10 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * The frame is pinned for tid and cannot be evicted until tid calls
+     * {@link #unpinPage} or completes. Pages fetched without a transaction
+     * (tid == null) are not pinned.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -62,18 +434,653 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-        // Permission is READ_ONLY or READ_WRITE, so shouldn't matter here
-        if (this.pages.containsKey(pid)) {
-            return this.pages.get(pid);
-        } else {
-            // Check: eviction not implemented anyway, so we don't call it here for project 1
-            // Check: possible exceptions, such as FileNotExist (when open) or IOException (when read) is caught by readPage
-            Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            // (Not explicitly creating HeapFile actually allowed us to use the interface DbFile)
-            this.pages.put(pid, page);
-            this.numPages++;
+        if (tid != null) {
+            this.lockManager.acquire(tid, pid, perm);
+        }
+        if (perm == Permissions.READ_WRITE) {
+            // the page is likely to be dirtied
+            this.writer.start();
+        }
+        return pinned(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the consecutive pages start to start + count - 1 of a table,
+     * as {@link #getPage(TransactionId, PageId, Permissions)} does each: every
+     * page is locked with perm and pinned for tid. Each run of the pages that
+     * is not resident is read with one vectored read, see
+     * {@link HeapFile#readPages}, rather than a read per page.
+     *
+     * @return the pages, in order
+     */
+    public List<Page> getPages(TransactionId tid, int tableId, int start, int count, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        List<PageId> pids = new ArrayList<PageId>(count);
+        for (int i = 0; i < count; i++) {
+            pids.add(new HeapPageId(tableId, start + i));
+        }
+        if (tid != null) {
+            for (PageId pid : pids) {
+                this.lockManager.acquire(tid, pid, perm);
+            }
+        }
+        if (perm == Permissions.READ_WRITE) {
+            this.writer.start();
+        }
+        int pinned = 0;
+        boolean fetched = false;
+        try {
+            if (tid != null) {
+                for (PageId pid : pids) {
+                    this.pins.pin(tid, pid);
+                    pinned++;
+                }
+            }
+            Page[] pages = new Page[count];
+            int run = -1;
+            for (int i = 0; i <= count; i++) {
+                Page page = i < count ? residentPage(pids.get(i), perm) : null;
+                if (page != null) {
+                    this.policy.pageAccessed(page.getId());
+                    this.stats.hit();
+                    pages[i] = page;
+                }
+                if (page == null && i < count) {
+                    this.stats.miss();
+                    if (run < 0) {
+                        run = i;
+                    }
+                } else if (run >= 0) {
+                    List<Page> read = loadRun(tableId, start + run, i - run);
+                    for (int k = run; k < i; k++) {
+                        page = read.get(k - run);
+                        if (this.arena != null && perm == Permissions.READ_WRITE) {
+                            page = keepOnHeap(page);
+                        }
+                        pages[k] = page;
+                    }
+                    run = -1;
+                }
+            }
+            fetched = true;
+            return Arrays.asList(pages);
+        } finally {
+            if (!fetched) {
+                for (int i = 0; i < pinned; i++) {
+                    this.pins.unpin(tid, pids.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Miss path of getPages: reads count consecutive pages with one vectored
+     * read per run of them and installs them. As in loadPage, a page another
+     * thread is reading already is waited for rather than read again.
+     *
+     * @return the installed pages, in order
+     */
+    private List<Page> loadRun(int tableId, int start, int count) throws DbException {
+        List<FutureTask<Page>> loads = startLoads(tableId, start, count);
+        List<Page> pages = new ArrayList<Page>(count);
+        for (int i = 0; i < count; i++) {
+            FutureTask<Page> load = loads.get(i);
+            if (load != null) {
+                pages.add(awaitLoad(load));
+                continue;
+            }
+            // installed since our miss; it may have left again since
+            PageId pid = new HeapPageId(tableId, start + i);
+            Page page = residentPage(pid, Permissions.READ_ONLY);
+            pages.add(page != null ? page : loadPage(pid));
+        }
+        return pages;
+    }
+
+    /**
+     * Registers a load in the loading table for each of the pages start to
+     * start + count - 1 of a table, and issues one vectored read for each
+     * run of the pages it registered. The runs are split at pages that are
+     * being read already, whose loads are left to the read in flight, and
+     * at pages that are resident, which are not read at all. So no read
+     * installs a page it did not register: a late duplicate could put back
+     * an image older than a copy that was written and evicted meanwhile.
+     *
+     * @return for each page, the load to wait on, or null if it is resident
+     */
+    private List<FutureTask<Page>> startLoads(int tableId, int start, int count) {
+        List<FutureTask<Page>> loads = new ArrayList<FutureTask<Page>>(count);
+        List<PageId> run = new ArrayList<PageId>();
+        List<IoFuture<Page>> reads = new ArrayList<IoFuture<Page>>();
+        for (int i = 0; i < count; i++) {
+            PageId pid = new HeapPageId(tableId, start + i);
+            IoFuture<Page> read = new IoFuture<Page>();
+            FutureTask<Page> inFlight = this.loading.putIfAbsent(pid, read);
+            if (inFlight == null && !isResident(pid)) {
+                run.add(pid);
+                reads.add(read);
+                loads.add(read);
+                continue;
+            }
+            if (inFlight == null) {
+                // installed between the caller's miss and our registration
+                this.loading.remove(pid, read);
+            }
+            loads.add(inFlight);
+            if (!run.isEmpty()) {
+                startRead(run, reads, true);
+                run = new ArrayList<PageId>();
+                reads = new ArrayList<IoFuture<Page>>();
+            }
+        }
+        if (!run.isEmpty()) {
+            startRead(run, reads, true);
+        }
+        return loads;
+    }
+
+    /**
+     * Pins the page for tid and fetches it; the pin comes first so the frame
+     * cannot go between the lookup and our caller using it. If the fetch
+     * fails the pin is dropped again.
+     */
+    private Page pinned(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+        throws DbException {
+        if (tid == null) {
+            return ring == null ? fetchPage(pid, perm) : fetchPage(pid, ring);
+        }
+        this.pins.pin(tid, pid);
+        boolean fetched = false;
+        try {
+            Page page = ring == null ? fetchPage(pid, perm) : fetchPage(pid, ring);
+            fetched = true;
+            return page;
+        } finally {
+            if (!fetched) {
+                this.pins.unpin(tid, pid);
+            }
+        }
+    }
+
+    /** Lookup and miss path of getPage, once the lock is held. */
+    private Page fetchPage(PageId pid, Permissions perm) throws DbException {
+        Page page = residentPage(pid, perm);
+        if (page != null) {
+            this.policy.pageAccessed(pid);
+            this.stats.hit();
+            return page;
+        }
+        this.stats.miss();
+        page = loadPage(pid);
+        if (this.arena != null && perm == Permissions.READ_WRITE) {
+            page = keepOnHeap(page);
+        }
+        return page;
+    }
+
+    /**
+     * @return the resident copy of pid, or null on a miss. Off-heap, a page
+     *   not kept on the heap is decoded from its frame; for READ_WRITE the
+     *   decoded page then stays on the heap until the transaction completes.
+     */
+    private Page residentPage(PageId pid, Permissions perm) throws DbException {
+        while (true) {
+            Page page = this.pages.get(pid);
+            if (page != null || this.arena == null) {
+                return page;
+            }
+            Frame frame = this.frames.get(pid);
+            if (frame == null) {
+                return null;
+            }
+            if (frame.slot < 0) {
+                continue; // kept on the heap: raced with the page's removal
+            }
+            byte[] data = this.arena.read(frame.slot);
+            if (this.frames.get(pid) != frame) {
+                // evicted while we copied, the frame may hold another page now
+                continue;
+            }
+            try {
+                page = new HeapPage((HeapPageId) pid, data);
+            } catch (IOException e) {
+                throw new DbException("could not decode page " + pid.pageNumber()
+                        + " of table " + pid.getTableId() + ": " + e.getMessage());
+            }
+            return perm == Permissions.READ_WRITE ? keepOnHeap(page) : page;
+        }
+    }
+
+    /**
+     * Off-heap: makes page the copy of its page id kept on the heap, unless
+     * there already is one, which is returned instead.
+     */
+    private synchronized Page keepOnHeap(Page page) throws DbException {
+        PageId pid = page.getId();
+        Page held = this.pages.get(pid);
+        if (held != null) {
+            return held;
+        }
+        if (!this.frames.containsKey(pid)) {
+            // evicted since it was decoded
+            installPage(page);
+        }
+        this.pages.put(pid, page);
+        return page;
+    }
+
+    /**
+     * Off-heap: puts a clean page kept on the heap back into its frame and
+     * drops the decoded copy.
+     */
+    private synchronized void releaseFromHeap(Page page) {
+        PageId pid = page.getId();
+        Frame frame = this.frames.get(pid);
+        if (frame == null || frame.slot < 0 || page.isDirty() != null
+                || this.pages.get(pid) != page) {
+            return;
+        }
+        this.arena.write(frame.slot, page.getPageData());
+        this.pages.remove(pid, page);
+    }
+
+    /**
+     * Retrieve a page for a sequential scan that reads through a ring. Takes
+     * the same lock and pin as {@link #getPage(TransactionId, PageId, Permissions)}
+     * and serves the page from the shared pool if it is resident or being
+     * read into it; otherwise the page is read into the ring and the shared
+     * pool is left alone.
+     * <p>
+     * A ring frame read ahead of time is only used if no page has been
+     * written to disk since its read started: such a write may have been a
+     * newer version of this very page leaving the pool. Otherwise, and on a
+     * ring miss, the page is read now, under the lock, which is always safe
+     * because a page that is not resident has been written back.
+     *
+     * @param ring the scan's ring, or null to go through the shared pool
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+        throws TransactionAbortedException, DbException {
+        if (ring == null || perm != Permissions.READ_ONLY) {
+            return getPage(tid, pid, perm);
+        }
+        if (tid != null) {
+            this.lockManager.acquire(tid, pid, perm);
+        }
+        return pinned(tid, pid, perm, ring);
+    }
+
+    /** Lookup and miss path of a getPage through a ring, once the lock is held. */
+    private Page fetchPage(PageId pid, ScanRing ring) throws DbException {
+        Page page = residentPage(pid, Permissions.READ_ONLY);
+        if (page != null) {
+            this.policy.pageAccessed(pid);
+            this.stats.hit();
             return page;
         }
+        this.stats.miss();
+        FutureTask<Page> inFlight = this.loading.get(pid);
+        if (inFlight != null) {
+            return awaitLoad(inFlight);
+        }
+        ScanRing.Frame frame = ring.get(pid);
+        if (frame == null || frame.epoch != this.writeEpoch.get()) {
+            IoFuture<Page> read = new IoFuture<Page>();
+            frame = new ScanRing.Frame(read, this.writeEpoch.get());
+            ring.put(pid, frame);
+            startRead(Collections.singletonList(pid), Collections.singletonList(read), false);
+        }
+        return awaitLoad(frame.load);
+    }
+
+    /**
+     * Miss path of getPage, a wait on an asynchronous read. Concurrent misses
+     * on the same page are coalesced: the first thread registers a load in
+     * the loading table and issues the read, every other thread waits on
+     * that load's future instead of issuing its own read.
+     */
+    private Page loadPage(PageId pid) throws DbException {
+        IoFuture<Page> load = new IoFuture<Page>();
+        FutureTask<Page> inFlight = this.loading.putIfAbsent(pid, load);
+        if (inFlight == null) {
+            // the page may have been installed between our miss and our
+            // registration in the loading table
+            Page resident = residentPage(pid, Permissions.READ_ONLY);
+            if (resident != null) {
+                this.loading.remove(pid, load);
+                load.complete(resident);
+                return resident;
+            }
+            startRead(Collections.singletonList(pid), Collections.singletonList(load), true);
+            inFlight = load;
+        }
+        return awaitLoad(inFlight);
+    }
+
+    /**
+     * Asks for a page to be read into the pool in the background, without
+     * taking any lock. Used for read-ahead: a later getPage of the same page
+     * finds it resident or waits on the read already in flight. Does nothing
+     * if the page is resident or being read.
+     */
+    public void prefetchPage(PageId pid) {
+        if (isResident(pid)) {
+            return;
+        }
+        // registered before it is issued, so an issued read counts as in flight
+        IoFuture<Page> load = new IoFuture<Page>();
+        if (this.loading.putIfAbsent(pid, load) != null) {
+            return;
+        }
+        startRead(Collections.singletonList(pid), Collections.singletonList(load), true);
+    }
+
+    /**
+     * Asks for the consecutive pages start to start + count - 1 of a table
+     * to be read into the pool in the background, as prefetchPage does
+     * each, but with one vectored read per run of them that is neither
+     * resident nor being read.
+     */
+    public void prefetchPages(int tableId, int start, int count) {
+        int i = 0;
+        while (i < count) {
+            int end = i;
+            while (end < count && !isResident(new HeapPageId(tableId, start + end))
+                    && !this.loading.containsKey(new HeapPageId(tableId, start + end))) {
+                end++;
+            }
+            if (end > i) {
+                // pages that went in flight since we looked are left out
+                startLoads(tableId, start + i, end - i);
+                i = end;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Read-ahead for a scan with a ring: reads the page into the ring in the
+     * background, without taking any lock. Does nothing if the page is
+     * resident or being read in the shared pool, or already in the ring.
+     */
+    public void prefetchPage(PageId pid, ScanRing ring) {
+        prefetchPages(pid.getTableId(), pid.pageNumber(), 1, ring);
+    }
+
+    /**
+     * Read-ahead for a scan with a ring, as prefetchPage does for each of
+     * the pages start to start + count - 1 of a table, with one vectored
+     * read per run of them that is not resident, being read, or in the ring.
+     */
+    public void prefetchPages(int tableId, int start, int count, ScanRing ring) {
+        int i = 0;
+        while (i < count) {
+            int end = i;
+            while (end < count) {
+                HeapPageId pid = new HeapPageId(tableId, start + end);
+                if (isResident(pid) || this.loading.containsKey(pid) || ring.contains(pid)) {
+                    break;
+                }
+                end++;
+            }
+            if (end > i) {
+                List<PageId> run = new ArrayList<PageId>(end - i);
+                List<IoFuture<Page>> loads = new ArrayList<IoFuture<Page>>(end - i);
+                for (int k = i; k < end; k++) {
+                    PageId pid = new HeapPageId(tableId, start + k);
+                    IoFuture<Page> load = new IoFuture<Page>();
+                    ring.put(pid, new ScanRing.Frame(load, this.writeEpoch.get()));
+                    run.add(pid);
+                    loads.add(load);
+                }
+                startRead(run, loads, false);
+                i = end;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Issues an asynchronous read of a run of consecutive pages of a table,
+     * with one vectored read if the table is a HeapFile, and returns at once.
+     * When the read completes, each page completes its future in loads; with
+     * install set, the page is first installed in the pool and its future
+     * leaves the loading table, so a caller that sees the future done and
+     * misses again reads the page anew; a page read before some page was
+     * written is read again instead, see installPage(Page, long). Installing
+     * may evict and flush, so it is handed to the installer thread rather
+     * than done on the thread that completed the read, which must stay free
+     * to complete other I/O. Other DbFiles are read synchronously, a page at
+     * a time.
+     */
+    private void startRead(final List<PageId> run, final List<IoFuture<Page>> loads, final boolean install) {
+        final PageId first = run.get(0);
+        final long start = System.nanoTime();
+        // taken before the read is issued, see installPage(Page, long)
+        final long epoch = this.writeEpoch.get();
+        final CompletionHandler<List<Page>, Void> arrived = new CompletionHandler<List<Page>, Void>() {
+            public void completed(List<Page> pages, Void ignored) {
+                for (int i = 0; i < loads.size(); i++) {
+                    Page page = null;
+                    Throwable failure = null;
+                    try {
+                        if (i >= pages.size()) {
+                            throw new IllegalArgumentException("no page " + run.get(i).pageNumber()
+                                    + " in table " + run.get(i).getTableId());
+                        }
+                        if (!install) {
+                            page = pages.get(i);
+                        } else if ((page = installPage(pages.get(i), epoch)) == null) {
+                            // the image may be older than a copy written and
+                            // evicted since; read the page again, still
+                            // registered, for whoever waits on it
+                            startRead(Collections.singletonList(run.get(i)),
+                                    Collections.singletonList(loads.get(i)), true);
+                            continue;
+                        }
+                    } catch (DbException e) {
+                        failure = e;
+                    } catch (RuntimeException e) {
+                        failure = e;
+                    }
+                    finish(i, page, failure);
+                }
+            }
+
+            public void failed(Throwable exc, Void ignored) {
+                DbException failure = new DbException("could not read page " + first.pageNumber()
+                        + (loads.size() > 1 ? " to " + (first.pageNumber() + loads.size() - 1) : "")
+                        + " of table " + first.getTableId() + ": " + exc);
+                for (int i = 0; i < loads.size(); i++) {
+                    finish(i, null, failure);
+                }
+            }
+
+            private void finish(int i, Page page, Throwable failure) {
+                if (install) {
+                    loading.remove(run.get(i), loads.get(i));
+                }
+                if (failure == null) {
+                    loads.get(i).complete(page);
+                } else {
+                    loads.get(i).fail(failure);
+                }
+            }
+        };
+
+        CompletionHandler<List<Page>, Void> handOff = new CompletionHandler<List<Page>, Void>() {
+            public void completed(final List<Page> pages, Void ignored) {
+                stats.read(System.nanoTime() - start);
+                if (!install) {
+                    arrived.completed(pages, null);
+                    return;
+                }
+                INSTALLER.execute(new Runnable() {
+                    public void run() {
+                        arrived.completed(pages, null);
+                    }
+                });
+            }
+
+            public void failed(Throwable exc, Void ignored) {
+                arrived.failed(exc, null);
+            }
+        };
+
+        DbFile file = Database.getCatalog().getDatabaseFile(first.getTableId());
+        try {
+            if (file instanceof HeapFile) {
+                ((HeapFile) file).readPagesAsync(first.pageNumber(), run.size(), null, handOff);
+                return;
+            }
+            List<Page> pages = new ArrayList<Page>(run.size());
+            for (PageId pid : run) {
+                // Check: possible exceptions, such as FileNotExist (when open) or IOException (when read) is caught by readPage
+                Page page = file.readPage(pid);
+                if (page == null) {
+                    arrived.failed(new IOException("read failed"), null);
+                    return;
+                }
+                pages.add(page);
+            }
+            this.stats.read(System.nanoTime() - start);
+            arrived.completed(pages, null);
+        } catch (RuntimeException e) {
+            // e.g. a page past the end of the file
+            for (int i = 0; i < loads.size(); i++) {
+                if (install) {
+                    this.loading.remove(run.get(i), loads.get(i));
+                }
+                loads.get(i).fail(e);
+            }
+        }
+    }
+
+    /** @return true if the page is resident in this buffer pool */
+    public boolean isResident(PageId pid) {
+        return this.pages.containsKey(pid) || this.frames.containsKey(pid);
+    }
+
+    /** @return true if a read of the page is in flight */
+    public boolean isLoading(PageId pid) {
+        return this.loading.containsKey(pid);
+    }
+
+    /**
+     * Installs a freshly read page, evicting if the pool is full. A frame that
+     * is already resident is never replaced; its page is returned instead so
+     * every caller shares one copy.
+     */
+    private synchronized Page installPage(Page page) throws DbException {
+        return installPage(page, this.writeEpoch.get());
+    }
+
+    /**
+     * Installs a page as installPage(Page) does, unless it was read from disk
+     * before some page was written: the write may have been a newer copy of
+     * this very page leaving the pool, as in a read-ahead that registered
+     * just after another load installed the page. Every write bumps the
+     * epoch once it is done, so an unchanged epoch means no copy of the page
+     * reached the disk since the read was issued.
+     *
+     * @param epoch the write epoch when the read was issued
+     * @return the installed or resident page, or null if the page may be
+     *   stale and was not installed
+     */
+    private synchronized Page installPage(Page page, long epoch) throws DbException {
+        PageId pid = page.getId();
+        Page resident = residentPage(pid, Permissions.READ_ONLY);
+        if (resident != null) {
+            this.policy.pageAccessed(pid);
+            return resident;
+        }
+        if (epoch != this.writeEpoch.get()) {
+            return null;
+        }
+        TableQuota quota = this.quotas.get(pid.getTableId());
+        if (quota != null && quota.maxPages > 0 && getResidentPages(pid.getTableId()) >= quota.maxPages) {
+            // replace a page of the same table rather than grow past its max
+            PageId victim = chooseVictim(new Victims(true, pid.getTableId(), false),
+                    new Victims(false, pid.getTableId(), false));
+            if (victim != null) {
+                evict(victim);
+            }
+        }
+        while (residentCount() >= this.numPages) {
+            evictPage();
+        }
+        Integer n = this.residentByTable.get(pid.getTableId());
+        this.residentByTable.put(pid.getTableId(), n == null ? 1 : n + 1);
+        if (this.arena == null) {
+            this.pages.put(pid, page);
+        } else {
+            byte[] data = page.getPageData();
+            if (page instanceof HeapPage && data.length == this.arena.getFrameSize()) {
+                int slot = this.arena.allocate();
+                this.arena.write(slot, data);
+                this.frames.put(pid, new Frame(slot));
+            } else {
+                // not a page we can decode again, keep it as it is
+                this.frames.put(pid, new Frame(-1));
+                this.pages.put(pid, page);
+            }
+        }
+        this.policy.pageLoaded(pid);
+        return page;
+    }
+
+    /** @return the number of pages resident in the pool */
+    private int residentCount() {
+        return this.arena == null ? this.pages.size() : this.frames.size();
+    }
+
+    /** Wait for a page load and unwrap whatever it failed with. */
+    private static <T> T awaitLoad(Future<T> load) throws DbException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return load.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DbException) {
+                throw (DbException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DbException("page load failed: " + cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Releases one pin tid holds on a page fetched with getPage. The page may
+     * be evicted once no transaction pins it. The lock on the page is kept.
+     *
+     * @param tid the ID of the transaction that fetched the page
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        if (tid != null && !this.pins.unpin(tid, pid) && Debug.isEnabled()) {
+            Debug.log("unpinPage: transaction %d does not pin page %d of table %d",
+                    tid.getId(), pid.pageNumber(), pid.getTableId());
+        }
+    }
+
+    /** @return true if some transaction has the page pinned */
+    public boolean isPinned(PageId pid) {
+        return this.pins.isPinned(pid);
     }
 
     /**
@@ -86,8 +1093,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        this.lockManager.release(tid, pid);
     }
 
     /**
@@ -96,15 +1102,12 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return this.lockManager.holdsLock(tid, p);
     }
 
     /**
@@ -116,8 +1119,120 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        Set<Integer> tables = new HashSet<Integer>();
+        // the I/O lock keeps a writer round from stealing a page of tid while
+        // we write or restore its pages, up to the point its locks are gone
+        synchronized (this) {
+            synchronized (this.ioLock) {
+                try {
+                    Map<PageId, Page> undo = this.undoImages.remove(tid);
+                    List<Page> written = new ArrayList<Page>();
+                    List<Page> restored = new ArrayList<Page>();
+                    for (PageId pid : this.lockManager.lockedPages(tid)) {
+                        if (!this.lockManager.holdsExclusiveLock(tid, pid)) {
+                            continue;
+                        }
+                        Page page = this.pages.get(pid);
+                        if (commit) {
+                            tables.add(pid.getTableId());
+                            if (page != null) {
+                                written.add(page);
+                            }
+                        } else {
+                            // any cached copy may hold changes of tid
+                            discardPage(pid);
+                            if (page != null && !this.force && page.isDirty() != null) {
+                                // under NO FORCE the committed image may be newer than disk
+                                restored.add(page.getBeforeImage());
+                            }
+                        }
+                    }
+                    if (commit) {
+                        if (this.force) {
+                            writeSorted(written, false);
+                        }
+                        for (Page page : written) {
+                            page.setBeforeImage();
+                            if (this.arena != null) {
+                                releaseFromHeap(page);
+                            }
+                        }
+                    } else {
+                        // put back the committed images of pages stolen from tid
+                        if (undo != null) {
+                            restored.addAll(undo.values());
+                        }
+                        for (Page before : restored) {
+                            Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
+                        }
+                        if (!restored.isEmpty()) {
+                            this.writeEpoch.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    unpinAll(tid);
+                    this.lockManager.releaseAll(tid);
+                }
+            }
+        }
+        if (!tables.isEmpty()) {
+            // the free space tid left behind is committed now; the writer
+            // saves it, off the commit path
+            this.unsavedMaps.addAll(tables);
+            this.writer.start();
+        }
+    }
+
+    /**
+     * Saves the free space maps of the tables written by transactions that
+     * committed since the last call. The maps are hints: a map that cannot be
+     * saved is only logged, and saved again after the next commit that
+     * changes it.
+     */
+    void saveCommittedFreeSpaceMaps() {
+        for (Iterator<Integer> it = this.unsavedMaps.iterator(); it.hasNext(); ) {
+            int tableId = it.next();
+            it.remove();
+            try {
+                saveFreeSpaceMaps(Collections.singleton(tableId));
+            } catch (IOException e) {
+                Debug.log("could not save the free space map of table %d: %s", tableId, e);
+            }
+        }
+    }
+
+    /**
+     * Saves the free space maps of the HeapFiles among tables, see
+     * {@link HeapFile#saveFreeSpaceMap}.
+     */
+    private void saveFreeSpaceMaps(Collection<Integer> tables) throws IOException {
+        Catalog catalog = Database.getCatalog();
+        for (int tableId : tables) {
+            DbFile file;
+            try {
+                file = catalog.getDatabaseFile(tableId);
+            } catch (NoSuchElementException e) {
+                // the table was dropped from the catalog meanwhile
+                continue;
+            }
+            if (file instanceof HeapFile) {
+                ((HeapFile) file).saveFreeSpaceMap();
+            }
+        }
+    }
+
+    /**
+     * Drops the pins tid did not release itself. In debug mode they are
+     * reported as leaks.
+     */
+    private void unpinAll(TransactionId tid) {
+        Map<PageId, Integer> leaked = this.pins.unpinAll(tid);
+        if (!leaked.isEmpty() && Debug.isEnabled()) {
+            for (Map.Entry<PageId, Integer> e : leaked.entrySet()) {
+                Debug.log("transaction %d completed with %d pin(s) on page %d of table %d",
+                        tid.getId(), e.getValue(), e.getKey().pageNumber(), e.getKey().getTableId());
+            }
+        }
     }
 
     /**
@@ -137,8 +1252,37 @@ public class BufferPool {
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
 
-            Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
-        
+            ArrayList<Page> dirtied = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
+            cacheDirtied(tid, dirtied);
+    }
+
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid, as {@link #insertTuple} does for one. A HeapFile fills a page at
+     * a time, so each page the batch goes to is fetched and dirtied once.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            ArrayList<Page> dirtied;
+            if (file instanceof HeapFile) {
+                dirtied = ((HeapFile) file).insertTuples(tid, tuples);
+            } else {
+                dirtied = new ArrayList<Page>();
+                for (Tuple t : tuples) {
+                    for (Page page : file.insertTuple(tid, t)) {
+                        if (!dirtied.contains(page)) {
+                            dirtied.add(page);
+                        }
+                    }
+                }
+            }
+            cacheDirtied(tid, dirtied);
     }
 
     /**
@@ -157,19 +1301,89 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
 
             int tableId = t.getRecordId().getPageId().getTableId();
-            Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
-        
+            ArrayList<Page> dirtied = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
+            cacheDirtied(tid, dirtied);
     }
 
     /**
-     * Flush all dirty pages to disk.
+     * Remove a batch of tuples on behalf of transaction tid, as
+     * {@link #deleteTuple} does for one. The tuples of a HeapFile are
+     * deleted a page at a time, so each page they are on is fetched and
+     * dirtied once.
+     *
+     * @param tid the transaction deleting the tuples
+     * @param tuples the tuples to delete, of any tables
+     */
+    public void deleteTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+
+            Map<Integer, List<Tuple>> byTable = new LinkedHashMap<Integer, List<Tuple>>();
+            for (Tuple t : tuples) {
+                int tableId = t.getRecordId().getPageId().getTableId();
+                List<Tuple> ofTable = byTable.get(tableId);
+                if (ofTable == null) {
+                    ofTable = new ArrayList<Tuple>();
+                    byTable.put(tableId, ofTable);
+                }
+                ofTable.add(t);
+            }
+            for (Map.Entry<Integer, List<Tuple>> e : byTable.entrySet()) {
+                DbFile file = Database.getCatalog().getDatabaseFile(e.getKey());
+                ArrayList<Page> dirtied;
+                if (file instanceof HeapFile) {
+                    dirtied = ((HeapFile) file).deleteTuples(tid, e.getValue());
+                } else {
+                    dirtied = new ArrayList<Page>();
+                    for (Tuple t : e.getValue()) {
+                        for (Page page : file.deleteTuple(tid, t)) {
+                            if (!dirtied.contains(page)) {
+                                dirtied.add(page);
+                            }
+                        }
+                    }
+                }
+                cacheDirtied(tid, dirtied);
+            }
+    }
+
+    /**
+     * Marks pages modified by tid dirty and makes sure the cached frame of
+     * each is the modified page.
+     */
+    private void cacheDirtied(TransactionId tid, List<Page> dirtied) throws DbException {
+        this.writer.start();
+        for (Page page : dirtied) {
+            page.markDirty(true, tid);
+            if (this.pages.get(page.getId()) != page) {
+                synchronized (this) {
+                    if (!isResident(page.getId())) {
+                        installPage(page);
+                    }
+                    this.pages.put(page.getId(), page);
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush all dirty pages to disk, and save the free space maps of the
+     * tables in the catalog.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        // some code goes here
-        // not necessary for lab1
-
+        List<Page> dirty = new ArrayList<Page>();
+        for (Page page : this.pages.values()) {
+            if (page.isDirty() != null) {
+                dirty.add(page);
+            }
+        }
+        writeSorted(dirty, true);
+        List<Integer> tables = new ArrayList<Integer>();
+        for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); ) {
+            tables.add(it.next());
+        }
+        saveFreeSpaceMaps(tables);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -178,8 +1392,26 @@ public class BufferPool {
         cache.
     */
     public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // only necessary for lab5
+        Page page = this.pages.remove(pid);
+        Frame frame = this.frames.remove(pid);
+        if (frame != null && frame.slot >= 0) {
+            this.arena.release(frame.slot);
+        }
+        if (page != null || frame != null) {
+            this.policy.pageRemoved(pid);
+            Integer n = this.residentByTable.get(pid.getTableId());
+            if (n == null || n <= 1) {
+                this.residentByTable.remove(pid.getTableId());
+            } else {
+                this.residentByTable.put(pid.getTableId(), n - 1);
+            }
+        }
+    }
+
+    /** @return true if evicting a page of the table would break its minimum */
+    private boolean atMinimum(int tableId) {
+        TableQuota quota = this.quotas.get(tableId);
+        return quota != null && getResidentPages(tableId) <= quota.minPages;
     }
 
     /**
@@ -187,15 +1419,245 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private synchronized void flushPage(PageId pid) throws IOException {
-        // some code goes here
-        // not necessary for lab1
+        Page page = this.pages.get(pid);
+        if (page != null) {
+            // even a clean page goes through writeRuns: a writer round may have
+            // marked it clean and still be writing it, and writeRuns waits for
+            // that write before the page can be dropped and read back
+            writeRuns(Collections.singletonList(Collections.singletonList(page)), true);
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
      */
     public synchronized void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        List<Page> dirty = new ArrayList<Page>();
+        for (Page page : this.pages.values()) {
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null && dirtier.equals(tid)) {
+                dirty.add(page);
+            }
+        }
+        writeSorted(dirty, true);
+    }
+
+    /**
+     * One round of the background writer: writes every dirty page the
+     * steal/force policy allows to be written now.
+     *
+     * @return the number of pages written
+     */
+    int writeDirtyPages() throws IOException {
+        List<Page> dirty = new ArrayList<Page>();
+        for (Page page : this.pages.values()) {
+            if (page.isDirty() != null && mayWrite(page)) {
+                dirty.add(page);
+            }
+        }
+        return writeSorted(dirty, true);
+    }
+
+    /**
+     * @return true if the policy allows page to be written now: it is clean,
+     *   STEAL is on, or the transaction that dirtied it has completed
+     */
+    private boolean mayWrite(Page page) {
+        TransactionId dirtier = page.isDirty();
+        return dirtier == null || this.steal || !this.lockManager.isActive(dirtier);
+    }
+
+    /**
+     * Writes pages in (table, page number) order, coalescing each run of
+     * adjacent pages of one table into a single write. The writes of all the
+     * runs are outstanding at once.
+     *
+     * @param keepUndo see {@link #writeRuns}
+     * @return the number of pages written
+     */
+    private int writeSorted(List<Page> dirty, boolean keepUndo) throws IOException {
+        Collections.sort(dirty, PAGE_ORDER);
+        List<List<Page>> runs = new ArrayList<List<Page>>();
+        int start = 0;
+        for (int i = 1; i <= dirty.size(); i++) {
+            if (i == dirty.size() || i - start == MAX_WRITE_RUN
+                    || !follows(dirty.get(i - 1).getId(), dirty.get(i).getId())) {
+                runs.add(dirty.subList(start, i));
+                start = i;
+            }
+        }
+        return writeRuns(runs, keepUndo);
+    }
+
+    /** @return true if b is the page right after a in the same table */
+    private static boolean follows(PageId a, PageId b) {
+        return a.getTableId() == b.getTableId() && a.pageNumber() + 1 == b.pageNumber();
+    }
+
+    /**
+     * Writes runs of adjacent pages of one table. Each page is copied and
+     * marked clean under its own monitor, so a concurrent change either makes
+     * it into the copy or leaves the page dirty again. Pages that are clean
+     * or no longer resident by the time we hold the I/O lock are skipped:
+     * someone else already wrote them, possibly a newer version.
+     * <p>
+     * The write of each stretch of pages is issued asynchronously, and all
+     * of them are waited for together, so they overlap rather than queue up
+     * behind one another. The pages of a failed write are dirty again.
+     *
+     * @param keepUndo if true and the transaction that dirtied a page is still
+     *   running, remember the committed image of the page first so an abort
+     *   can restore it
+     * @return the number of pages written
+     */
+    private int writeRuns(List<List<Page>> runs, boolean keepUndo) throws IOException {
+        int written = 0;
+        synchronized (this.ioLock) {
+            List<Write> writes = new ArrayList<Write>();
+            for (List<Page> run : runs) {
+                int i = 0;
+                while (i < run.size()) {
+                    // collect the next stretch of pages that still need writing
+                    Write write = new Write();
+                    List<byte[]> images = new ArrayList<byte[]>();
+                    for (; i < run.size(); i++) {
+                        Page page = run.get(i);
+                        TransactionId dirtier;
+                        byte[] image;
+                        synchronized (page) {
+                            dirtier = page.isDirty();
+                            if (dirtier == null || this.pages.get(page.getId()) != page) {
+                                if (write.stretch.isEmpty()) {
+                                    continue;
+                                }
+                                break;
+                            }
+                            if (keepUndo && this.lockManager.isActive(dirtier)) {
+                                rememberUndo(dirtier, page);
+                            }
+                            image = page.getPageData();
+                            page.markDirty(false, null);
+                        }
+                        write.stretch.add(page);
+                        write.dirtiers.add(dirtier);
+                        images.add(image);
+                    }
+                    if (!write.stretch.isEmpty()) {
+                        startWrite(write, images);
+                        writes.add(write);
+                    }
+                }
+            }
+
+            IOException failure = null;
+            for (Write write : writes) {
+                try {
+                    write.await();
+                    written += write.stretch.size();
+                } catch (IOException e) {
+                    for (int j = 0; j < write.stretch.size(); j++) {
+                        Page page = write.stretch.get(j);
+                        synchronized (page) {
+                            if (page.isDirty() == null) {
+                                page.markDirty(true, write.dirtiers.get(j));
+                            }
+                        }
+                    }
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (!writes.isEmpty()) {
+                // even a failed write may have reached the disk in part
+                this.writeEpoch.incrementAndGet();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        return written;
+    }
+
+    /** A write of a stretch of adjacent pages, and whose changes they held. */
+    private static class Write {
+        final List<Page> stretch = new ArrayList<Page>();
+        final List<TransactionId> dirtiers = new ArrayList<TransactionId>();
+        final IoFuture<Integer> done = new IoFuture<Integer>();
+
+        /** Waits for the write, and unwraps whatever it failed with. */
+        void await() throws IOException {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        this.done.get();
+                        return;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("page write failed: " + cause);
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the images of a stretch of contiguous pages to their file, in one
+     * asynchronous write if it can, and returns at once; the write completes
+     * write.done. Other DbFiles are written synchronously, a page at a time.
+     */
+    private void startWrite(final Write write, List<byte[]> images) {
+        PageId first = write.stretch.get(0).getId();
+        DbFile file = Database.getCatalog().getDatabaseFile(first.getTableId());
+        final long start = System.nanoTime();
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).writePagesAsync(first.pageNumber(), images.toArray(new byte[images.size()][]),
+                    null, new CompletionHandler<Integer, Void>() {
+                        public void completed(Integer pages, Void ignored) {
+                            stats.write(pages, System.nanoTime() - start);
+                            write.done.complete(pages);
+                        }
+
+                        public void failed(Throwable exc, Void ignored) {
+                            write.done.fail(exc);
+                        }
+                    });
+            return;
+        }
+        try {
+            for (Page page : write.stretch) {
+                file.writePage(page);
+            }
+            this.stats.write(write.stretch.size(), System.nanoTime() - start);
+            write.done.complete(write.stretch.size());
+        } catch (IOException e) {
+            write.done.fail(e);
+        }
+    }
+
+    /** Keep the committed image of a page about to be stolen from tid. */
+    private void rememberUndo(TransactionId tid, Page page) {
+        Map<PageId, Page> undo = this.undoImages.get(tid);
+        if (undo == null) {
+            undo = new ConcurrentHashMap<PageId, Page>();
+            Map<PageId, Page> raced = this.undoImages.putIfAbsent(tid, undo);
+            if (raced != null) {
+                undo = raced;
+            }
+        }
+        // the first steal of a page holds its last committed image
+        if (!undo.containsKey(page.getId())) {
+            undo.put(page.getId(), page.getBeforeImage());
+        }
     }
 
     /**
@@ -203,10 +1665,76 @@ public class BufferPool {
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
     private synchronized void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
+        PageId victim = chooseVictim(this.victims);
+        if (victim == null) {
+            throw new DbException(this.steal ? "every page in the buffer pool is pinned"
+                    : "every page in the buffer pool is pinned or dirty (NO STEAL)");
+        }
+        evict(victim);
     }
 
-    private int numPages;
-    private ConcurrentHashMap<PageId, Page> pages;
+    /**
+     * Asks the policy for a victim among each set of candidates in turn.
+     *
+     * @return the first victim found, or null
+     */
+    private synchronized PageId chooseVictim(Victims... candidates) {
+        for (Victims c : candidates) {
+            PageId victim = this.policy.chooseVictim(c);
+            if (victim != null) {
+                if (!c.cleanOnly) {
+                    // we had to take a dirty page: the writer is behind
+                    this.writer.wakeUp();
+                }
+                return victim;
+            }
+        }
+        return null;
+    }
+
+    /** Flushes the victim if it is dirty and drops it from the pool. */
+    private synchronized void evict(PageId victim) throws DbException {
+        try {
+            flushPage(victim);
+        } catch (IOException e) {
+            throw new DbException("could not flush page " + victim.pageNumber()
+                    + " of table " + victim.getTableId() + " on eviction: " + e.getMessage());
+        }
+        discardPage(victim);
+        this.stats.eviction();
+    }
+
+    /** Table id of Victims that may come from any table */
+    private static final int ANY_TABLE = Integer.MIN_VALUE;
+
+    private volatile int numPages;
+    private final ConcurrentHashMap<Integer, TableQuota> quotas;
+    /** Number of resident pages of each table, guarded by this */
+    private final HashMap<Integer, Integer> residentByTable;
+    /** Resident pages; off-heap, only those kept decoded on the heap */
+    private final ConcurrentHashMap<PageId, Page> pages;
+    /** Off-heap only: every resident page, with the frame holding it */
+    private final ConcurrentHashMap<PageId, Frame> frames;
+    private final FrameArena arena;
+    /** Reads in flight, so concurrent misses on one page share a single read */
+    private final ConcurrentHashMap<PageId, FutureTask<Page>> loading;
+    private final EvictionPolicy policy;
+    private final Victims[] victims;
+    private final LockManager lockManager;
+    private final PinTable pins;
+    /** Committed images of pages written out while their dirtier was running */
+    private final ConcurrentHashMap<TransactionId, Map<PageId, Page>> undoImages;
+    /** Serializes page writes with each other and with abort's restores */
+    private final Object ioLock;
+    private final BackgroundWriter writer;
+    /** Counts writes to disk; lets scan rings tell whether a read is stale */
+    private final AtomicLong writeEpoch;
+    // tables whose free space map changed in a committed transaction and
+    // that the writer has not saved since
+    private final Set<Integer> unsavedMaps;
+    private volatile int scanRingThreshold;
+    private volatile int scanRingSize;
+    private final BufferPoolStats stats;
+    private volatile boolean steal;
+    private volatile boolean force;
 }
\ No newline at end of file
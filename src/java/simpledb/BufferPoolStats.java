@@ -0,0 +1,218 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * BufferPoolStats counts what a BufferPool does: hits, misses, evictions,
+ * dirty page flushes, and the latency of its reads and writes. Latencies go
+ * into histograms with power-of-two microsecond buckets. Counters are updated
+ * without locking and may be read at any time.
+ * <p>
+ * The statistics of the Database's pool are published as an MXBean and can
+ * be printed from the Parser console with the <tt>stats;</tt> command.
+ *
+ * @Threadsafe
+ */
+public class BufferPoolStats implements BufferPoolStatsMXBean {
+
+    /** Name the statistics of the current buffer pool are registered under. */
+    public static final String OBJECT_NAME = "simpledb:type=BufferPool";
+
+    /** Number of buckets of the latency histograms; the last one is open ended. */
+    public static final int HISTOGRAM_BUCKETS = 24;
+
+    BufferPoolStats(BufferPool pool) {
+        this.pool = pool;
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+        this.dirtyFlushes = new AtomicLong();
+        this.reads = new AtomicLong();
+        this.writes = new AtomicLong();
+        this.readLatency = new AtomicLongArray(HISTOGRAM_BUCKETS);
+        this.writeLatency = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    }
+
+    /**
+     * Registers these statistics with the platform MBeanServer, replacing
+     * whatever was registered under {@link #OBJECT_NAME} before.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            synchronized (BufferPoolStats.class) {
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            Debug.log("could not register buffer pool statistics: %s", e);
+        }
+    }
+
+    void hit() {
+        this.hits.incrementAndGet();
+    }
+
+    void miss() {
+        this.misses.incrementAndGet();
+    }
+
+    void eviction() {
+        this.evictions.incrementAndGet();
+    }
+
+    /** A page, or a run of pages, was read from disk with one read in the given time. */
+    void read(long nanos) {
+        this.reads.incrementAndGet();
+        record(this.readLatency, nanos);
+    }
+
+    /** Dirty pages were written to disk with one write in the given time. */
+    void write(int pages, long nanos) {
+        this.writes.incrementAndGet();
+        this.dirtyFlushes.addAndGet(pages);
+        record(this.writeLatency, nanos);
+    }
+
+    private static void record(AtomicLongArray histogram, long nanos) {
+        long micros = Math.max(1, nanos / 1000);
+        int bucket = 63 - Long.numberOfLeadingZeros(micros);
+        histogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long total = hits + this.misses.get();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    public long getDirtyFlushes() {
+        return this.dirtyFlushes.get();
+    }
+
+    public long getReads() {
+        return this.reads.get();
+    }
+
+    public long getWrites() {
+        return this.writes.get();
+    }
+
+    public long[] getReadLatencyHistogram() {
+        return snapshot(this.readLatency);
+    }
+
+    public long[] getWriteLatencyHistogram() {
+        return snapshot(this.writeLatency);
+    }
+
+    private static long[] snapshot(AtomicLongArray histogram) {
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    public int getNumPages() {
+        return this.pool.getNumPages();
+    }
+
+    public int getResidentPages() {
+        return this.pool.residentPageIds().size();
+    }
+
+    public Map<String, Integer> getResidentPagesByTable() {
+        Map<Integer, Integer> byId = new HashMap<Integer, Integer>();
+        for (PageId pid : this.pool.residentPageIds()) {
+            Integer n = byId.get(pid.getTableId());
+            byId.put(pid.getTableId(), n == null ? 1 : n + 1);
+        }
+        Map<String, Integer> byName = new TreeMap<String, Integer>();
+        for (Map.Entry<Integer, Integer> e : byId.entrySet()) {
+            String name;
+            try {
+                name = Database.getCatalog().getTableName(e.getKey());
+            } catch (NoSuchElementException ex) {
+                name = "#" + e.getKey();
+            }
+            if (name == null) {
+                name = "#" + e.getKey();
+            }
+            byName.put(name, e.getValue());
+        }
+        return byName;
+    }
+
+    public void reset() {
+        this.hits.set(0);
+        this.misses.set(0);
+        this.evictions.set(0);
+        this.dirtyFlushes.set(0);
+        this.reads.set(0);
+        this.writes.set(0);
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            this.readLatency.set(i, 0);
+            this.writeLatency.set(i, 0);
+        }
+    }
+
+    /** @return a readable report of all statistics */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("pages: %d resident of %d%n", getResidentPages(), getNumPages()));
+        sb.append(String.format("hits: %d  misses: %d  hit ratio: %.3f%n",
+                getHits(), getMisses(), getHitRatio()));
+        sb.append(String.format("evictions: %d  dirty flushes: %d in %d writes  reads: %d%n",
+                getEvictions(), getDirtyFlushes(), getWrites(), getReads()));
+        appendHistogram(sb, "read latency", getReadLatencyHistogram());
+        appendHistogram(sb, "write latency", getWriteLatencyHistogram());
+        sb.append("resident pages per table:\n");
+        for (Map.Entry<String, Integer> e : getResidentPagesByTable().entrySet()) {
+            sb.append(String.format("  %-20s %d%n", e.getKey(), e.getValue()));
+        }
+        return sb.toString();
+    }
+
+    private static void appendHistogram(StringBuilder sb, String title, long[] counts) {
+        sb.append(title).append(" (us):\n");
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                String upper = i == counts.length - 1 ? "inf" : Long.toString(1L << (i + 1));
+                sb.append(String.format("  < %-8s %d%n", upper, counts[i]));
+            }
+        }
+    }
+
+    private final BufferPool pool;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    private final AtomicLong dirtyFlushes;
+    private final AtomicLong reads;
+    private final AtomicLong writes;
+    private final AtomicLongArray readLatency;
+    private final AtomicLongArray writeLatency;
+}
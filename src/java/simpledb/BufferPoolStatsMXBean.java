@@ -0,0 +1,52 @@
+package simpledb;
+
+import java.util.Map;
+
+/**
+ * Management interface of the statistics of a BufferPool, as published over
+ * JMX under {@link BufferPoolStats#OBJECT_NAME}.
+ */
+public interface BufferPoolStatsMXBean {
+
+    /** @return the number of page requests served from the pool */
+    long getHits();
+
+    /** @return the number of page requests that had to wait for a read */
+    long getMisses();
+
+    /** @return hits / (hits + misses), or 0 before any request */
+    double getHitRatio();
+
+    /** @return the number of pages evicted to make room */
+    long getEvictions();
+
+    /** @return the number of dirty pages written to disk */
+    long getDirtyFlushes();
+
+    /** @return the number of read calls issued; several pages may share one */
+    long getReads();
+
+    /** @return the number of write calls issued; several pages may share one */
+    long getWrites();
+
+    /**
+     * @return read latencies: element i counts reads that took less than
+     *   2^(i+1) microseconds and, for i &gt; 0, at least 2^i
+     */
+    long[] getReadLatencyHistogram();
+
+    /** @return write latencies, bucketed like {@link #getReadLatencyHistogram} */
+    long[] getWriteLatencyHistogram();
+
+    /** @return the capacity of the pool in pages */
+    int getNumPages();
+
+    /** @return the number of pages currently resident */
+    int getResidentPages();
+
+    /** @return the number of resident pages of each table, by table name */
+    Map<String, Integer> getResidentPagesByTable();
+
+    /** Sets every counter and histogram back to zero. */
+    void reset();
+}
@@ -0,0 +1,335 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * BulkLoader writes a table file of HeapPages straight from typed rows or
+ * from a delimited text stream, in one pass. Rows are encoded into page
+ * buffers in place, and full pages are written WRITE_PAGES at a time with
+ * large sequential FileChannel writes.
+ * <p>
+ * Text input can be parsed on several threads: the lines are cut into
+ * batches that are parsed in parallel, and the records of the batches are
+ * laid out on pages in input order, so the file is the same as a single
+ * threaded load would write. Lines that cannot be parsed are reported and
+ * skipped.
+ * <pre>
+ *     BulkLoader loader = new BulkLoader(file, BufferPool.getPageSize(), types);
+ *     loader.setParseThreads(4);
+ *     loader.load(reader, ',');
+ *     loader.close();
+ * </pre>
+ *
+ * @see HeapFileEncoder
+ * @see HeapPage
+ */
+public class BulkLoader {
+
+    /** Number of pages buffered before they are written. */
+    public static final int WRITE_PAGES = 64;
+
+    /** Number of lines parsed as one batch by a parse thread. */
+    public static final int BATCH_LINES = 4096;
+
+    /**
+     * Creates a loader that writes outFile, replacing whatever it holds.
+     *
+     * @param outFile the table file to write
+     * @param npagebytes the number of bytes per page
+     * @param typeAr the types of the fields of each row
+     */
+    public BulkLoader(File outFile, int npagebytes, Type[] typeAr) throws IOException {
+        this.typeAr = typeAr.clone();
+        this.npagebytes = npagebytes;
+        int nrecbytes = 0;
+        for (Type type : typeAr) {
+            nrecbytes += type.getLen();
+        }
+        this.nrecbytes = nrecbytes;
+        this.nrecords = (npagebytes * 8) / (nrecbytes * 8 + 1);
+        this.nheaderbytes = (this.nrecords + 7) / 8;
+        if (this.nrecords == 0) {
+            throw new IllegalArgumentException("a record of " + nrecbytes + " bytes does not fit on a page");
+        }
+        this.pages = ByteBuffer.allocate(WRITE_PAGES * npagebytes);
+        this.record = ByteBuffer.allocate(nrecbytes);
+        this.channel = new FileOutputStream(outFile).getChannel();
+        this.parseThreads = 1;
+        this.recordcount = 0;
+        this.npages = 0;
+        this.buffered = 0;
+        this.nrows = 0;
+    }
+
+    /**
+     * Parses text input on n threads; 1, the default, parses it in the
+     * calling thread.
+     */
+    public BulkLoader setParseThreads(int n) {
+        this.parseThreads = Math.max(1, n);
+        return this;
+    }
+
+    /**
+     * Adds a row of fields of the types of the table.
+     * @throws IllegalArgumentException if the row does not match the types
+     */
+    public void add(Field... row) throws IOException {
+        if (row.length != this.typeAr.length) {
+            throw new IllegalArgumentException("row has " + row.length + " fields, expected " + this.typeAr.length);
+        }
+        this.record.clear();
+        for (int i = 0; i < row.length; i++) {
+            if (row[i].getType() != this.typeAr[i]) {
+                throw new IllegalArgumentException("field " + i + " is not of type " + this.typeAr[i]);
+            }
+            if (row[i] instanceof IntField) {
+                this.record.putInt(((IntField) row[i]).getValue());
+            } else {
+                putString(this.record, ((StringField) row[i]).getValue());
+            }
+        }
+        addRecord(this.record.array(), 0);
+    }
+
+    /**
+     * Adds a row of an all int table.
+     * @throws IllegalArgumentException if the row does not have a value
+     *   for each field
+     */
+    public void addInts(List<Integer> row) throws IOException {
+        if (row.size() != this.typeAr.length) {
+            throw new IllegalArgumentException("row has " + row.size() + " fields, expected " + this.typeAr.length
+                    + ": (" + Utility.listToString(new ArrayList<Integer>(row)) + ")");
+        }
+        this.record.clear();
+        for (int i = 0; i < row.size(); i++) {
+            if (this.typeAr[i] != Type.INT_TYPE) {
+                throw new IllegalArgumentException("field " + i + " is not of type " + Type.INT_TYPE);
+            }
+            this.record.putInt(row.get(i));
+        }
+        addRecord(this.record.array(), 0);
+    }
+
+    /**
+     * Adds a row for each line of in, whose fields are separated by
+     * fieldSeparator. Blank lines are ignored; lines with a bad number or
+     * the wrong number of fields are reported and skipped. Strings are
+     * trimmed and cut to Type.STRING_LEN characters.
+     */
+    public void load(Reader in, char fieldSeparator) throws IOException {
+        BufferedReader br = new BufferedReader(in, 1 << 16);
+        if (this.parseThreads == 1) {
+            List<String> lines;
+            while (!(lines = readBatch(br)).isEmpty()) {
+                addBatch(parse(lines, fieldSeparator));
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(this.parseThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-loader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // batches in input order; a few per thread are parsed ahead
+        LinkedList<Future<Batch>> pending = new LinkedList<Future<Batch>>();
+        try {
+            List<String> lines;
+            while (!(lines = readBatch(br)).isEmpty()) {
+                final List<String> batch = lines;
+                final char separator = fieldSeparator;
+                pending.add(pool.submit(new Callable<Batch>() {
+                    public Batch call() {
+                        return parse(batch, separator);
+                    }
+                }));
+                if (pending.size() >= 2 * this.parseThreads) {
+                    addBatch(await(pending.removeFirst()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                addBatch(await(pending.removeFirst()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the last page, or an empty page if no row was added, and
+     * closes the file.
+     * @return the number of pages written
+     */
+    public int close() throws IOException {
+        try {
+            if (this.recordcount > 0 || this.npages == 0) {
+                finishPage();
+            }
+            flush();
+        } finally {
+            this.channel.close();
+        }
+        return this.npages;
+    }
+
+    /** @return the number of rows added so far */
+    public long getRowCount() {
+        return this.nrows;
+    }
+
+    private List<String> readBatch(BufferedReader br) throws IOException {
+        List<String> lines = new ArrayList<String>(BATCH_LINES);
+        String line;
+        while (lines.size() < BATCH_LINES && (line = br.readLine()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /** Records of a batch of lines, encoded back to back. */
+    private static class Batch {
+        Batch(byte[] records, int count) {
+            this.records = records;
+            this.count = count;
+        }
+
+        final byte[] records;
+        final int count;
+    }
+
+    /** Encodes the records of lines; called on the parse threads. */
+    private Batch parse(List<String> lines, char fieldSeparator) {
+        ByteBuffer out = ByteBuffer.allocate(lines.size() * this.nrecbytes);
+        int count = 0;
+        for (String line : lines) {
+            if (line.trim().length() == 0) {
+                continue;
+            }
+            int start = out.position();
+            if (encodeLine(line, fieldSeparator, out)) {
+                count++;
+            } else {
+                System.out.println ("BAD LINE : " + line);
+                out.position(start);
+            }
+        }
+        return new Batch(out.array(), count);
+    }
+
+    /** @return false if line is not a record of the table */
+    private boolean encodeLine(String line, char fieldSeparator, ByteBuffer out) {
+        int from = 0;
+        for (int i = 0; i < this.typeAr.length; i++) {
+            int to = line.indexOf(fieldSeparator, from);
+            if (to < 0) {
+                if (i < this.typeAr.length - 1) {
+                    return false; // too few fields
+                }
+                to = line.length();
+            } else if (i == this.typeAr.length - 1) {
+                return false; // too many fields
+            }
+            String value = line.substring(from, to).trim();
+            if (this.typeAr[i] == Type.INT_TYPE) {
+                try {
+                    out.putInt(Integer.parseInt(value));
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            } else {
+                putString(out, value);
+            }
+            from = to + 1;
+        }
+        return true;
+    }
+
+    /** Encodes a string field as StringField.serialize does. */
+    private static void putString(ByteBuffer out, String s) {
+        int len = Math.min(s.length(), Type.STRING_LEN);
+        out.putInt(len);
+        for (int i = 0; i < len; i++) {
+            out.put((byte) s.charAt(i));
+        }
+        for (int i = len; i < Type.STRING_LEN; i++) {
+            out.put((byte) 0);
+        }
+    }
+
+    private static Batch await(Future<Batch> batch) throws IOException {
+        try {
+            return batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading");
+        } catch (ExecutionException e) {
+            throw new IOException("parsing failed: " + e.getCause());
+        }
+    }
+
+    private void addBatch(Batch batch) throws IOException {
+        for (int i = 0; i < batch.count; i++) {
+            addRecord(batch.records, i * this.nrecbytes);
+        }
+    }
+
+    /** Copies a record into the next slot of the current page. */
+    private void addRecord(byte[] records, int offset) throws IOException {
+        int page = this.buffered * this.npagebytes;
+        byte[] buf = this.pages.array();
+        System.arraycopy(records, offset, buf,
+                page + this.nheaderbytes + this.recordcount * this.nrecbytes, this.nrecbytes);
+        buf[page + this.recordcount / 8] |= (byte) (1 << (this.recordcount % 8));
+        this.recordcount++;
+        this.nrows++;
+        if (this.recordcount == this.nrecords) {
+            finishPage();
+        }
+    }
+
+    private void finishPage() throws IOException {
+        this.npages++;
+        this.buffered++;
+        this.recordcount = 0;
+        if (this.buffered == WRITE_PAGES) {
+            flush();
+        }
+    }
+
+    /** Writes the finished pages in the buffer. */
+    private void flush() throws IOException {
+        this.pages.clear();
+        this.pages.limit(this.buffered * this.npagebytes);
+        while (this.pages.hasRemaining()) {
+            this.channel.write(this.pages);
+        }
+        // pages start out as zeroes
+        Arrays.fill(this.pages.array(), 0, this.buffered * this.npagebytes, (byte) 0);
+        this.buffered = 0;
+    }
+
+    private final Type[] typeAr;
+    private final int npagebytes;
+    private final int nrecbytes;
+    private final int nrecords;
+    private final int nheaderbytes;
+    // WRITE_PAGES pages: the finished pages not written yet, then the page
+    // being filled
+    private final ByteBuffer pages;
+    private int buffered;
+    // scratch buffer of a typed row
+    private final ByteBuffer record;
+    private final FileChannel channel;
+    private int parseThreads;
+    private int recordcount;
+    private int npages;
+    private long nrows;
+}
@@ -158,13 +158,30 @@ public class Catalog {
     
     /** Delete all tables from the catalog */
     public void clear() {
-        // Clear merely reinstantiates the mappings
+        // Clear reinstantiates the mappings; the files of the old tables are
+        // closed, they reopen themselves if still used
+        for (Table table : this.tables.values()) {
+            if (table.getDbFile() instanceof HeapFile) {
+                ((HeapFile) table.getDbFile()).close();
+            }
+        }
         this.tables = new ConcurrentHashMap<Integer, Table>();
         this.tableNameIdMapping = new ConcurrentHashMap<String, Integer>();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes one table as
+     * <pre>
+     *     name (field type [pk], ...) [option=value ...]
+     * </pre>
+     * The options are <tt>access</tt>, <tt>channel</tt> (the default) or
+     * <tt>mmap</tt> to read the table from a memory mapping, and
+     * <tt>format</tt>, <tt>heap</tt> (the default) or <tt>slotted</tt> to
+     * store strings at their real length or <tt>pax</tt> to store the
+     * values of each column together, and <tt>compression</tt>,
+     * <tt>none</tt> (the default) or <tt>deflate</tt> to store the pages
+     * compressed.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -205,7 +222,18 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                Map<String, String> options = new HashMap<String, String>();
+                for (String option : line.substring(line.indexOf(")") + 1).trim().split("\\s+")) {
+                    if (option.length() == 0)
+                        continue;
+                    int eq = option.indexOf("=");
+                    if (eq < 0) {
+                        System.out.println("Invalid option " + option);
+                        System.exit(0);
+                    }
+                    options.put(option.substring(0, eq).toLowerCase(), option.substring(eq + 1).toLowerCase());
+                }
+                DbFile tabHf = openTable(new File(baseFolder+"/"+name + ".dat"), t, options);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -218,6 +246,41 @@ public class Catalog {
         }
     }
 
+    /**
+     * Creates the DbFile of a table of the catalog file, as its options ask.
+     * Exits on options it does not know, like the rest of loadSchema.
+     */
+    private DbFile openTable(File f, TupleDesc td, Map<String, String> options) {
+        boolean mapped = false;
+        boolean compressed = false;
+        HeapFile.Format format = HeapFile.Format.HEAP;
+        for (Map.Entry<String, String> e : options.entrySet()) {
+            if (e.getKey().equals("access") && e.getValue().equals("mmap")) {
+                mapped = true;
+            } else if (e.getKey().equals("access") && e.getValue().equals("channel")) {
+                mapped = false;
+            } else if (e.getKey().equals("format") && e.getValue().equals("slotted")) {
+                format = HeapFile.Format.SLOTTED;
+            } else if (e.getKey().equals("format") && e.getValue().equals("pax")) {
+                format = HeapFile.Format.PAX;
+            } else if (e.getKey().equals("format") && e.getValue().equals("heap")) {
+                format = HeapFile.Format.HEAP;
+            } else if (e.getKey().equals("compression") && e.getValue().equals("deflate")) {
+                compressed = true;
+            } else if (e.getKey().equals("compression") && e.getValue().equals("none")) {
+                compressed = false;
+            } else {
+                System.out.println("Unknown option " + e.getKey() + "=" + e.getValue());
+                System.exit(0);
+            }
+        }
+        if (mapped && compressed) {
+            System.out.println("A compressed table cannot be mapped: " + f.getName());
+            System.exit(0);
+        }
+        return new HeapFile(f, td, format, mapped, compressed);
+    }
+
     private ConcurrentHashMap<Integer, Table> tables;
     // we have this mapping since table names are unique, and we want to refer to a table by both its name or its ID
     private ConcurrentHashMap<String, Integer> tableNameIdMapping;
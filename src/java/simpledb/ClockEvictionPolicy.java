@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * CLOCK (second chance) approximation of LRU. Resident pages sit on a circular
+ * list of slots, each with a reference bit that is set on every hit. The clock
+ * hand sweeps the slots, clearing set bits, and evicts the first evictable
+ * page whose bit is already clear.
+ *
+ * @Threadsafe
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    public ClockEvictionPolicy() {
+        this.slots = new ArrayList<PageId>();
+        this.referenced = new ArrayList<Boolean>();
+        this.slotOf = new HashMap<PageId, Integer>();
+        this.freeSlots = new ArrayDeque<Integer>();
+        this.hand = 0;
+    }
+
+    public synchronized void setCapacity(int numPages) {
+        // the ring grows on demand, so there is nothing to preallocate
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (this.slotOf.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        int slot;
+        if (this.freeSlots.isEmpty()) {
+            slot = this.slots.size();
+            this.slots.add(pid);
+            this.referenced.add(Boolean.TRUE);
+        } else {
+            slot = this.freeSlots.poll();
+            this.slots.set(slot, pid);
+            this.referenced.set(slot, Boolean.TRUE);
+        }
+        this.slotOf.put(pid, slot);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer slot = this.slotOf.get(pid);
+        if (slot != null) {
+            this.referenced.set(slot, Boolean.TRUE);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer slot = this.slotOf.remove(pid);
+        if (slot != null) {
+            this.slots.set(slot, null);
+            this.referenced.set(slot, Boolean.FALSE);
+            this.freeSlots.add(slot);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Candidates candidates) {
+        int n = this.slots.size();
+        // two full sweeps: the first may only clear reference bits
+        for (int step = 0; step < 2 * n; step++) {
+            if (this.hand >= n) {
+                this.hand = 0;
+            }
+            int slot = this.hand++;
+            PageId pid = this.slots.get(slot);
+            if (pid == null || !candidates.isEvictable(pid)) {
+                continue;
+            }
+            if (this.referenced.get(slot)) {
+                this.referenced.set(slot, Boolean.FALSE);
+            } else {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private final ArrayList<PageId> slots;
+    private final ArrayList<Boolean> referenced;
+    private final HashMap<PageId, Integer> slotOf;
+    private final ArrayDeque<Integer> freeSlots;
+    private int hand;
+}
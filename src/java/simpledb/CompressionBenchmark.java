@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compares a table stored plain with the same table stored compressed: the
+ * bytes each takes on disk and how fast a full scan of each runs. The buffer
+ * pool is emptied before every scan, so every page is read from the file.
+ * <pre>
+ *     java simpledb.CompressionBenchmark [tuples] [rounds]
+ * </pre>
+ * The table has four int columns of the kind real tables hold: an id, a
+ * small category, a value in a narrow range, and a mostly constant flag.
+ */
+public class CompressionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numTuples = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>(numTuples);
+        Random r = new Random(42);
+        for (int i = 0; i < numTuples; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>(4);
+            tuple.add(i);
+            tuple.add(r.nextInt(16));
+            tuple.add(1000 + r.nextInt(1000));
+            tuple.add(r.nextInt(100) == 0 ? 1 : 0);
+            tuples.add(tuple);
+        }
+        TupleDesc td = Utility.getTupleDesc(4);
+
+        File plainFile = File.createTempFile("plain", ".dat");
+        File packedFile = File.createTempFile("packed", ".dat");
+        File packedDirectory = HeapFile.sidecar(packedFile, ".pdir");
+        plainFile.deleteOnExit();
+        packedFile.deleteOnExit();
+        packedDirectory.deleteOnExit();
+        packedFile.delete();
+
+        HeapFileEncoder.convert(tuples, plainFile, BufferPool.getPageSize(), 4);
+        HeapFile plain = new HeapFile(plainFile, td);
+        HeapFile packed = new HeapFile(packedFile, td, HeapFile.Format.HEAP, false, true);
+        Database.getCatalog().addTable(plain, "plain");
+        Database.getCatalog().addTable(packed, "packed");
+        for (int i = 0; i < plain.numPages(); i++) {
+            packed.writePage(plain.readPage(new HeapPageId(plain.getId(), i)));
+        }
+
+        System.out.println(numTuples + " tuples in " + plain.numPages() + " pages");
+        System.out.println("plain:      " + plainFile.length() + " bytes");
+        System.out.println("compressed: " + (packedFile.length() + packedDirectory.length()) + " bytes ("
+                + packedDirectory.length() + " of them the page directory)");
+
+        for (int round = 0; round < rounds; round++) {
+            System.out.println("round " + round + ": plain " + scan(plain) + " ms, compressed "
+                    + scan(packed) + " ms");
+        }
+    }
+
+    /** @return the time a full scan of a table takes from disk, in ms */
+    private static long scan(HeapFile table) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+        scan.open();
+        long sum = 0;
+        while (scan.hasNext()) {
+            sum += ((IntField) scan.next().getField(2)).getValue();
+        }
+        scan.close();
+        long ms = (System.nanoTime() - start) / 1000000;
+        Database.getBufferPool().transactionComplete(tid);
+        if (sum == 0) {
+            System.out.println("empty table");
+        }
+        return ms;
+    }
+}
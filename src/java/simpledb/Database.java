@@ -21,9 +21,26 @@ public class Database {
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
+    /**
+     * System property naming the eviction policy of the buffer pool, e.g.
+     * -Dsimpledb.EvictionPolicy=2q. See {@link BufferPool#newEvictionPolicy}.
+     */
+    private final static String EVICTION_POLICY_PROPERTY = "simpledb.EvictionPolicy";
+    private final String _evictionPolicy;
+
+    /**
+     * System property that, when "true", keeps the clean pages of the buffer
+     * pool in off-heap memory, e.g. -Dsimpledb.OffHeap=true.
+     */
+    private final static String OFF_HEAP_PROPERTY = "simpledb.OffHeap";
+    private final boolean _offHeap;
+
     private Database() {
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _evictionPolicy = System.getProperty(EVICTION_POLICY_PROPERTY, BufferPool.DEFAULT_EVICTION_POLICY);
+        _offHeap = Boolean.parseBoolean(System.getProperty(OFF_HEAP_PROPERTY, "false"));
+        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES, BufferPool.newEvictionPolicy(_evictionPolicy), _offHeap);
+        _bufferpool.getStats().register();
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -55,11 +72,29 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, BufferPool.newEvictionPolicy(_instance.get()._evictionPolicy));
+    }
+
+    /**
+     * Method used for testing and benchmarking -- create a new instance of the
+     * buffer pool that evicts pages with the given policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy policy) {
+        return resetBufferPool(pages, policy, _instance.get()._offHeap);
+    }
+
+    /**
+     * Method used for testing and benchmarking -- create a new instance of the
+     * buffer pool that evicts pages with the given policy and keeps clean
+     * pages on or off the heap, and return it
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy policy, boolean offHeap) {
         java.lang.reflect.Field bufferPoolF=null;
+        _instance.get()._bufferpool.shutdown();
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, policy, offHeap));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -70,12 +105,15 @@ public class Database {
             e.printStackTrace();
         }
 //        _instance._bufferpool = new BufferPool(pages);
+        _instance.get()._bufferpool.getStats().register();
         return _instance.get()._bufferpool;
     }
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        Database old = _instance.getAndSet(new Database());
+        old._bufferpool.shutdown();
+        old._catalog.clear();
     }
 
 }
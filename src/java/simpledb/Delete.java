@@ -1,16 +1,27 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The delete operator. Delete reads tuples from its child operator and removes
  * them from the table they belong to.
+ * <p>
+ * The child is read in batches of about BATCH_SIZE tuples, cut only where
+ * the page changes, and each batch is deleted a page at a time, so a page
+ * is fetched and dirtied once however many of its tuples go.
  */
 public class Delete extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Number of tuples deleted together, rounded up to a whole page. */
+    public static final int BATCH_SIZE = 4096;
+
     TransactionId tid;
     DbIterator iter;
+    private boolean done;
 
     /**
      * Constructor specifying the transaction that this delete belongs to as
@@ -24,6 +35,7 @@ public class Delete extends Operator {
     public Delete(TransactionId t, DbIterator child) {
         this.tid = t;
         this.iter = child;
+        this.done = false;
     }
 
     public TupleDesc getTupleDesc() {
@@ -45,6 +57,7 @@ public class Delete extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
         this.iter.rewind();
+        this.done = false;
     }
 
     /**
@@ -54,11 +67,47 @@ public class Delete extends Operator {
      * 
      * @return A 1-field tuple containing the number of deleted records.
      * @see Database#getBufferPool
-     * @see BufferPool#deleteTuple
+     * @see BufferPool#deleteTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        // some code goes here
-        return null;
+        if (this.done) {
+            return null;
+        }
+        this.done = true;
+
+        List<Tuple> batch = new ArrayList<Tuple>(BATCH_SIZE);
+        int count = 0;
+        while (this.iter.hasNext()) {
+            Tuple t = this.iter.next();
+            PageId pid = t.getRecordId().getPageId();
+            if (batch.size() >= BATCH_SIZE
+                    && !pid.equals(batch.get(batch.size() - 1).getRecordId().getPageId())) {
+                count += delete(batch);
+            }
+            batch.add(t);
+        }
+        count += delete(batch);
+
+        Tuple result = new Tuple(getTupleDesc());
+        result.setField(0, new IntField(count));
+        return result;
+    }
+
+    /**
+     * Deletes the tuples of batch and empties it.
+     * @return the number of tuples deleted
+     */
+    private int delete(List<Tuple> batch) throws TransactionAbortedException, DbException {
+        int n = batch.size();
+        if (n > 0) {
+            try {
+                Database.getBufferPool().deleteTuples(this.tid, batch);
+            } catch (IOException e) {
+                throw new DbException("delete failed: " + e.getMessage());
+            }
+            batch.clear();
+        }
+        return n;
     }
 
     @Override
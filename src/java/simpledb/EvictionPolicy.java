@@ -0,0 +1,47 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool gives up when it
+ * needs a free frame. The BufferPool reports every page it loads, every hit
+ * and every page it drops; the policy only keeps the bookkeeping it needs to
+ * rank pages and never touches the pages themselves.
+ * <p>
+ * Implementations must be safe to call from several threads.
+ *
+ * @see BufferPool#getPage
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Callback used by {@link #chooseVictim} to skip frames that cannot be
+     * evicted right now.
+     */
+    public interface Candidates {
+        /** @return true if the resident page pid may be evicted */
+        public boolean isEvictable(PageId pid);
+    }
+
+    /**
+     * Tells the policy how many frames the buffer pool holds. Called by the
+     * BufferPool before any other method.
+     */
+    public void setCapacity(int numPages);
+
+    /** A page was read from disk and installed in the buffer pool. */
+    public void pageLoaded(PageId pid);
+
+    /** A page that is already resident was requested again. */
+    public void pageAccessed(PageId pid);
+
+    /** A page left the buffer pool, either evicted or discarded. */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Picks the page to evict next. The page stays tracked until the
+     * BufferPool calls {@link #pageRemoved}.
+     *
+     * @return a resident page accepted by candidates, or null if no resident
+     *   page is evictable
+     */
+    public PageId chooseVictim(Candidates candidates);
+}
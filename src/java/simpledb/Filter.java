@@ -24,6 +24,14 @@ public class Filter extends Operator {
     public Filter(Predicate p, DbIterator child) {
         this.pred = p;
         this.iter = child;
+        pushDown();
+    }
+
+    /** Lets a scan below skip the pages that cannot satisfy the predicate. */
+    private void pushDown() {
+        if (this.iter instanceof SeqScan) {
+            ((SeqScan) this.iter).setFilter(this.pred);
+        }
     }
 
     public Predicate getPredicate() {
@@ -84,8 +92,10 @@ public class Filter extends Operator {
     @Override
     public void setChildren(DbIterator[] children) 
     {
-        if (children.length > 0)
+        if (children.length > 0) {
             this.iter = children[0];
+            pushDown();
+        }
     }
 
 }
@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * FrameArena is a preallocated block of off-heap memory divided into
+ * page-sized frames. A BufferPool running off-heap keeps the bytes of its
+ * clean pages here and decodes a page from its frame on access, so the size
+ * of the pool does not count against the Java heap.
+ * <p>
+ * The memory is allocated as direct ByteBuffers of at most CHUNK_FRAMES
+ * frames each, so an arena may be larger than a single buffer can address.
+ * An arena can grow; it never gives memory back.
+ *
+ * @Threadsafe
+ */
+public class FrameArena {
+
+    /** Number of frames per direct buffer. */
+    private static final int CHUNK_FRAMES = 1024;
+
+    /**
+     * @param numFrames the number of frames to allocate
+     * @param frameSize the size of each frame in bytes
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        this.frameSize = frameSize;
+        this.numFrames = 0;
+        this.chunkOf = new ByteBuffer[0];
+        this.offsetOf = new int[0];
+        this.free = new int[0];
+        this.numFree = 0;
+        grow(numFrames);
+    }
+
+    /**
+     * Adds frames to the arena until it has numFrames of them. Does nothing
+     * if it already has that many.
+     */
+    public synchronized void grow(int numFrames) {
+        if (numFrames <= this.numFrames) {
+            return;
+        }
+        ByteBuffer[] chunkOf = Arrays.copyOf(this.chunkOf, numFrames);
+        int[] offsetOf = Arrays.copyOf(this.offsetOf, numFrames);
+        for (int first = this.numFrames; first < numFrames; first += CHUNK_FRAMES) {
+            int frames = Math.min(CHUNK_FRAMES, numFrames - first);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(frames * this.frameSize);
+            for (int i = 0; i < frames; i++) {
+                chunkOf[first + i] = chunk;
+                offsetOf[first + i] = i * this.frameSize;
+            }
+        }
+        int[] free = Arrays.copyOf(this.free, numFrames);
+        for (int frame = numFrames - 1; frame >= this.numFrames; frame--) {
+            free[this.numFree++] = frame;
+        }
+        this.free = free;
+        // frames are handed out under this monitor, so readers of a frame
+        // always see the arrays that cover it
+        this.offsetOf = offsetOf;
+        this.chunkOf = chunkOf;
+        this.numFrames = numFrames;
+    }
+
+    /** @return the size of each frame in bytes */
+    public int getFrameSize() {
+        return this.frameSize;
+    }
+
+    /** @return the number of frames of the arena */
+    public synchronized int getNumFrames() {
+        return this.numFrames;
+    }
+
+    /**
+     * Takes a free frame.
+     *
+     * @return the frame number, or -1 if every frame is in use
+     */
+    public synchronized int allocate() {
+        if (this.numFree == 0) {
+            return -1;
+        }
+        return this.free[--this.numFree];
+    }
+
+    /** Returns a frame taken with allocate. */
+    public synchronized void release(int frame) {
+        this.free[this.numFree++] = frame;
+    }
+
+    /** Copies a page image into a frame. */
+    public void write(int frame, byte[] data) {
+        if (data.length != this.frameSize) {
+            throw new IllegalArgumentException("page image of " + data.length
+                    + " bytes does not fit a frame of " + this.frameSize);
+        }
+        ByteBuffer buf = slice(frame);
+        buf.put(data);
+    }
+
+    /** @return a copy of the contents of a frame */
+    public byte[] read(int frame) {
+        byte[] data = new byte[this.frameSize];
+        slice(frame).get(data);
+        return data;
+    }
+
+    /**
+     * @return a buffer positioned at the start of frame; a private view, so
+     *   concurrent accesses to other frames do not disturb each other
+     */
+    private ByteBuffer slice(int frame) {
+        ByteBuffer buf = this.chunkOf[frame].duplicate();
+        buf.position(this.offsetOf[frame]);
+        return buf;
+    }
+
+    private final int frameSize;
+    private int numFrames;
+    // the chunk holding each frame and its offset in there; replaced, never
+    // changed, when growing
+    private volatile ByteBuffer[] chunkOf;
+    private volatile int[] offsetOf;
+    // stack of free frame numbers, guarded by this
+    private int[] free;
+    private int numFree;
+}
@@ -0,0 +1,183 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap records how much free space each page of a HeapFile has, so
+ * an insert can go straight to a page with room instead of reading every
+ * page of the file. Space is counted in the units of the page format, see
+ * {@link TuplePage#getFreeSpace}. The map keeps one 16-bit count per page
+ * and is saved to a sidecar file next to the table, with the extension
+ * <tt>.fsm</tt>.
+ * <p>
+ * The map is a hint, not part of the table: a page may have more or less
+ * room than the map says, after an abort or a crash, or when the table was
+ * written without it. Its users check the page itself and correct the map.
+ * Pages the map knows nothing about are UNKNOWN and are assumed to have room
+ * until they are visited.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    /** Count of a page whose free space is not known. */
+    public static final int UNKNOWN = 0xFFFF;
+
+    private static final int MAGIC = 0x46534d31; // "FSM1"
+
+    /**
+     * Loads the map saved in file, or starts an empty one if there is none
+     * or it does not match the table.
+     *
+     * @param file the sidecar file
+     * @param numPages the number of pages the table has
+     */
+    public FreeSpaceMap(File file, int numPages) {
+        this.file = file;
+        this.counts = new char[Math.max(16, numPages)];
+        Arrays.fill(this.counts, (char) UNKNOWN);
+        this.numPages = numPages;
+        this.firstFree = 0;
+        this.dirty = false;
+        if (file.exists()) {
+            try {
+                load(numPages);
+            } catch (IOException e) {
+                // a broken map is only a lost hint
+                Debug.log("ignoring free space map %s: %s", file, e);
+                Arrays.fill(this.counts, (char) UNKNOWN);
+            }
+        }
+    }
+
+    private void load(int numPages) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a free space map");
+            }
+            int saved = in.readInt();
+            if (saved != numPages) {
+                // the table was rewritten or grew behind the map's back
+                return;
+            }
+            for (int i = 0; i < saved; i++) {
+                this.counts[i] = in.readChar();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the number of a page at or after from that may have a free
+     *   slot, or -1 if the map knows of none
+     */
+    public int findPage(int from) {
+        return findPage(from, 1);
+    }
+
+    /**
+     * @return the number of a page at or after from that may have at least
+     *   space free, or -1 if the map knows of none
+     */
+    public synchronized int findPage(int from, int space) {
+        for (int i = Math.max(from, this.firstFree); i < this.numPages; i++) {
+            if (this.counts[i] >= space) {
+                return i;
+            }
+            if (i == this.firstFree && this.counts[i] == 0) {
+                this.firstFree++;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the free space recorded for a page, or UNKNOWN */
+    public synchronized int get(int pageNo) {
+        return pageNo < this.numPages ? this.counts[pageNo] : UNKNOWN;
+    }
+
+    /** Records that a page has free space, growing the map if needed. */
+    public synchronized void set(int pageNo, int free) {
+        if (update(pageNo, free)) {
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Records the free space of a page that was read from disk. Unlike a
+     * change made with set, this alone does not make the map worth saving.
+     */
+    public synchronized void observe(int pageNo, int free) {
+        update(pageNo, free);
+    }
+
+    /** @return true if the count of the page changed */
+    private boolean update(int pageNo, int free) {
+        if (pageNo >= this.counts.length) {
+            int size = Math.max(pageNo + 1, this.counts.length * 2);
+            int old = this.counts.length;
+            this.counts = Arrays.copyOf(this.counts, size);
+            Arrays.fill(this.counts, old, size, (char) UNKNOWN);
+        }
+        this.numPages = Math.max(this.numPages, pageNo + 1);
+        char count = (char) Math.min(free, UNKNOWN - 1);
+        if (count > 0 && pageNo < this.firstFree) {
+            this.firstFree = pageNo;
+        }
+        if (this.counts[pageNo] == count) {
+            return false;
+        }
+        this.counts[pageNo] = count;
+        return true;
+    }
+
+    /** Forgets the pages from numPages on, after the table was truncated. */
+    public synchronized void truncate(int numPages) {
+        if (numPages >= this.numPages) {
+            return;
+        }
+        Arrays.fill(this.counts, numPages, this.numPages, (char) UNKNOWN);
+        this.numPages = numPages;
+        this.firstFree = Math.min(this.firstFree, numPages);
+        this.dirty = true;
+    }
+
+    /**
+     * Writes the map to its sidecar file if it changed since it was loaded.
+     * The file is replaced in one rename, so a crash leaves the old map or
+     * the new one.
+     */
+    public synchronized void save() throws IOException {
+        if (!this.dirty) {
+            return;
+        }
+        File tmp = new File(this.file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(this.numPages);
+            for (int i = 0; i < this.numPages; i++) {
+                out.writeChar(this.counts[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(this.file)) {
+            this.file.delete();
+            if (!tmp.renameTo(this.file)) {
+                throw new IOException("could not replace " + this.file);
+            }
+        }
+        this.dirty = false;
+    }
+
+    private final File file;
+    private char[] counts;
+    private int numPages;
+    // no page before this one has a free slot, as far as the map knows
+    private int firstFree;
+    private boolean dirty;
+}
@@ -1,7 +1,21 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.MappedByteBuffer;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -9,22 +23,95 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * The file is accessed through one FileChannel, opened on first use and
+ * kept open until {@link #close}, with positional reads and writes so
+ * concurrent accesses need no seeking or locking. The number of pages is
+ * tracked in memory; the file is only stat'ed when the channel is opened.
+ * <p>
+ * Runs of pages can also be read and written asynchronously, through an
+ * AsynchronousFileChannel on the same file: the call returns at once, and a
+ * CompletionHandler is called when the I/O is done. The BufferPool keeps
+ * many such reads and writes outstanding without a thread waiting on each.
+ * <p>
+ * A HeapFile may instead be memory mapped, for read-mostly tables: pages are
+ * then decoded straight from a read-only mapping of the file, made in chunks
+ * of MAP_CHUNK_BYTES and remapped as the file grows. Writes still go through
+ * the channel, which shares the OS page cache with the mapping.
+ * <p>
+ * Inserts find a page with room through a {@link FreeSpaceMap}, kept in a
+ * sidecar file next to the table. The background writer of the buffer pool
+ * saves it soon after a transaction that wrote the table commits, and the
+ * pool saves it when it flushes all pages; closing the file saves it too.
+ * <p>
+ * Pages are HeapPages, SlottedPages for a table whose strings are best
+ * stored at their real length, or PaxPages for a table scanned a few
+ * columns at a time; see {@link Format}.
+ * <p>
+ * A compressed HeapFile deflates every page image it writes and inflates it
+ * again on read. Compressed images vary in size; a {@link PageDirectory} in
+ * a sidecar file records where each one is. Compression trades CPU for I/O
+ * and disk space, see {@link CompressionBenchmark}.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
 
+    /** Size of the chunks a mapped file is mapped in. */
+    public static final int MAP_CHUNK_BYTES = 64 << 20;
+
+    /** Room set aside for a compressed image is rounded up to this. */
+    static final int COMPRESSED_ALIGNMENT = 64;
+
+    /**
+     * Threads that run the completion handlers of asynchronous I/O. Handlers
+     * must not block on other I/O, e.g. by evicting, or they may wait for a
+     * completion no thread is left to deliver.
+     */
+    private static final ExecutorService AIO_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-aio");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** The formats a HeapFile can store its pages in. */
+    public enum Format {
+        /** fixed size slots, see {@link HeapPage} */
+        HEAP,
+        /** variable length records in a slot directory, see {@link SlottedPage} */
+        SLOTTED,
+        /** fixed size slots stored a column at a time, see {@link PaxPage} */
+        PAX
+    }
+
     File file;
     TupleDesc tupleDesc;
     int pageSize;
 
     public class HeapFileIterator implements DbFileIterator {
         public HeapFileIterator(TransactionId transactionId, HeapFile heapFile) {
+            this(transactionId, heapFile, null);
+        }
+
+        /**
+         * Creates an iterator that skips the pages that cannot hold a tuple
+         * satisfying filter, as far as their stats tell. It still returns
+         * tuples that do not satisfy filter.
+         */
+        public HeapFileIterator(TransactionId transactionId, HeapFile heapFile, Predicate filter) {
+            this.filter = filter;
             this.transactionId = transactionId;
             this.heapFile = heapFile;
             this.currentPageNum = 0;
             this.tupleIterator = null;
+            this.cursor = new HeapPage.TupleCursor();
+            this.ring = null;
+            this.readAhead = null;
+            this.pinned = null;
         }
 
         public void open()
@@ -32,12 +119,19 @@ public class HeapFile implements DbFile {
             // note the static method for getting one buffer pool
             BufferPool bufferPool = Database.getBufferPool();
             HeapPageId pageId = new HeapPageId(this.heapFile.getId(), this.currentPageNum);
+            // a table too large for the pool is scanned through a private ring
+            this.ring = bufferPool.newScanRing(this.heapFile.numPages());
+            this.readAhead = new ReadAhead(this.heapFile.getId(), this.ring);
+            this.readAhead.access(this.currentPageNum, this.heapFile.numPages());
 
             try {
-                HeapPage heapPage = (HeapPage) bufferPool.getPage(transactionId, pageId, Permissions.READ_ONLY);
-                this.tupleIterator = heapPage.iterator();
+                TuplePage heapPage = (TuplePage) bufferPool.getPage(transactionId, pageId, Permissions.READ_ONLY, this.ring);
+                this.pinned = pageId;
+                this.tupleIterator = tuples(heapPage);
             } catch (ClassCastException e) {
-                // in case the indicated pageId does not correspond with a heap page
+                // in case the indicated pageId does not correspond with a heap page;
+                // getPage pinned it all the same
+                bufferPool.unpinPage(transactionId, pageId);
             }
         }
 
@@ -52,21 +146,28 @@ public class HeapFile implements DbFile {
             } else {
                 this.currentPageNum++;
                 BufferPool bufferPool = Database.getBufferPool();
+                // done with the page we were iterating over
+                unpin();
                 
                 // hasNext, a peek function, would cause bufferPool to load; in case that the next page is empty
                 while (this.currentPageNum < this.heapFile.numPages()) {
                     HeapPageId pageId = new HeapPageId(this.heapFile.getId(), this.currentPageNum);
+                    this.readAhead.access(this.currentPageNum, this.heapFile.numPages());
                     try {
-                        HeapPage heapPage = (HeapPage) bufferPool.getPage(transactionId, pageId, Permissions.READ_ONLY);
-                        if (heapPage.iterator().hasNext()) {
-                            // Check: if setting iterator here would cause issues: iterator can be thought of as being the pseudohead of a linked list?
-                            this.tupleIterator = heapPage.iterator();
+                        TuplePage heapPage = (TuplePage) bufferPool.getPage(transactionId, pageId, Permissions.READ_ONLY, this.ring);
+                        this.pinned = pageId;
+                        this.tupleIterator = tuples(heapPage);
+                        if (this.tupleIterator.hasNext()) {
                             return true;
                         } else {
+                            unpin();
                             this.currentPageNum++;
                         }
                     } catch (ClassCastException e) {
-                        // in case the indicated pageId does not correspond with a heap page
+                        // in case the indicated pageId does not correspond with a heap page;
+                        // getPage pinned it all the same
+                        bufferPool.unpinPage(transactionId, pageId);
+                        this.currentPageNum++;
                     }
                 }
                 return false;
@@ -105,14 +206,43 @@ public class HeapFile implements DbFile {
          * Closes the iterator.
          */
         public void close() {
+            unpin();
             this.tupleIterator = null;
+            this.ring = null;
             this.currentPageNum = 0;
         }
 
+        /** @return an iterator over the tuples of page */
+        private Iterator<Tuple> tuples(TuplePage page) {
+            if (this.filter != null && page instanceof PaxPage && !((PaxPage) page).mayMatch(this.filter)) {
+                return Collections.<Tuple>emptyList().iterator();
+            }
+            if (page instanceof HeapPage) {
+                // the cursor is reused for every page of the scan
+                return this.cursor.reset((HeapPage) page);
+            }
+            return page.iterator();
+        }
+
+        // null while the iterator is not open
         private Iterator<Tuple> tupleIterator;
+        private final HeapPage.TupleCursor cursor;
         private int currentPageNum;
+        /** Releases the pin on the page being iterated over, if any. */
+        private void unpin() {
+            if (this.pinned != null) {
+                Database.getBufferPool().unpinPage(this.transactionId, this.pinned);
+                this.pinned = null;
+            }
+        }
+
+        private HeapPageId pinned;
+        private ScanRing ring;
+        private ReadAhead readAhead;
         private TransactionId transactionId;
         private HeapFile heapFile;
+        // pages that cannot satisfy it are skipped, if not null
+        private final Predicate filter;
     }
 
     /**
@@ -123,9 +253,76 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mapped
+     *            true to read pages from a memory mapping of the file
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped) {
+        this(f, td, Format.HEAP, mapped);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param format
+     *            the format of the pages of the file
+     * @param mapped
+     *            true to read pages from a memory mapping of the file
+     */
+    public HeapFile(File f, TupleDesc td, Format format, boolean mapped) {
+        this(f, td, format, mapped, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param format
+     *            the format of the pages of the file
+     * @param mapped
+     *            true to read pages from a memory mapping of the file
+     * @param compressed
+     *            true to store the pages compressed; cannot be mapped
+     */
+    public HeapFile(File f, TupleDesc td, Format format, boolean mapped, boolean compressed) {
+        if (mapped && compressed) {
+            throw new IllegalArgumentException("a compressed file cannot be mapped");
+        }
         this.file = f;
+        this.format = format;
+        this.compressed = compressed;
+        this.directory = null;
         this.tupleDesc = td;
         this.pageSize = BufferPool.getPageSize();
+        this.mapped = mapped;
+        this.channel = null;
+        this.asyncChannel = null;
+        this.pageCount = new AtomicInteger(-1);
+        this.chunks = new MappedByteBuffer[0];
+        this.freeSpace = null;
+    }
+
+    /**
+     * @return true if runs of pages may be read with one vectored read, see
+     *   {@link #readPages}; false to read each page with readPage. A
+     *   subclass that overrides readPage returns false here, or its readPage
+     *   is bypassed for runs.
+     */
+    protected boolean readsRuns() {
+        return true;
     }
 
     /**
@@ -137,6 +334,21 @@ public class HeapFile implements DbFile {
         return this.file;
     }
 
+    /** @return the format of the pages of this file */
+    public Format getFormat() {
+        return this.format;
+    }
+
+    /** @return true if the pages of this file are stored compressed */
+    public boolean isCompressed() {
+        return this.compressed;
+    }
+
+    /** @return true if pages are read from a memory mapping of the file */
+    public boolean isMapped() {
+        return this.mapped;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere ensure that each
@@ -164,14 +376,24 @@ public class HeapFile implements DbFile {
     public Page readPage(PageId pid) {
         int pageNo = pid.pageNumber();
         try {
-            RandomAccessFile raf = new RandomAccessFile(this.file, "r");
             if (pageNo < numPages()) {
-                byte[] pageData = new byte[this.pageSize];
-                // Check: the offset param in read's not doing what I supposed it would do; added seek call instead
-                raf.seek(pageNo * this.pageSize);
-                raf.read(pageData, 0, this.pageSize);
-                // A cast exception would be thrown if pid cannot be converted to HeapPageId
-                HeapPage heapPage = new HeapPage((HeapPageId)pid, pageData);
+                TuplePage heapPage;
+                if (this.mapped && this.format == Format.HEAP) {
+                    heapPage = new HeapPage((HeapPageId)pid, mappedPage(pageNo));
+                } else {
+                    byte[] pageData = new byte[this.pageSize];
+                    if (this.mapped) {
+                        mappedPage(pageNo).get(pageData);
+                    } else if (this.compressed) {
+                        readCompressed(pageNo, pageData);
+                    } else {
+                        read(ByteBuffer.wrap(pageData), (long) pageNo * this.pageSize);
+                    }
+                    // A cast exception would be thrown if pid cannot be converted to HeapPageId
+                    heapPage = newPage((HeapPageId)pid, pageData);
+                }
+                // whatever was read is better than what the map remembers
+                freeSpaceMap().observe(pageNo, heapPage.getFreeSpace());
                 return heapPage;
             } else {
                 throw new IllegalArgumentException();
@@ -184,34 +406,752 @@ public class HeapFile implements DbFile {
         return null;
     }
 
-    // see DbFile.java for javadocs
-    public void writePage(Page page) throws IOException {
-        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+    /**
+     * Reads the consecutive pages start to start + count - 1, as readPage
+     * reads each, with a single scatter read of the file into one frame per
+     * page. A run past the end of the file is cut short there. A mapped or
+     * compressed file reads the pages one by one: a mapping is read without
+     * system calls, and compressed images are not adjacent. So does a
+     * subclass whose {@link #readsRuns} returns false.
+     *
+     * @return the pages read, in order, or null if the read failed
+     * @throws IllegalArgumentException if page start does not exist
+     */
+    public List<Page> readPages(int start, int count) {
+        int end = Math.min(start + count, numPages());
+        if (start < 0 || start >= end) {
+            throw new IllegalArgumentException("no page " + start + " in " + this.file.getPath());
+        }
+        ArrayList<Page> pages = new ArrayList<Page>(end - start);
+        if (this.mapped || this.compressed || !readsRuns()) {
+            for (int i = start; i < end; i++) {
+                pages.add(readPage(new HeapPageId(this.getId(), i)));
+            }
+            return pages;
+        }
+        try {
+            byte[][] frames = new byte[end - start][this.pageSize];
+            ByteBuffer[] bufs = new ByteBuffer[frames.length];
+            for (int i = 0; i < frames.length; i++) {
+                bufs[i] = ByteBuffer.wrap(frames[i]);
+            }
+            read(bufs, (long) start * this.pageSize);
+            for (int i = 0; i < frames.length; i++) {
+                TuplePage page = newPage(new HeapPageId(this.getId(), start + i), frames[i]);
+                freeSpaceMap().observe(start + i, page.getFreeSpace());
+                pages.add(page);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return pages;
+    }
 
-        int offset = this.pageSize * page.getId().pageNumber(); 
-        raf.seek(offset);
+    /**
+     * Reads the consecutive pages start to start + count - 1 as readPages
+     * does, but asynchronously, with one read of the asynchronous channel.
+     * The pages are decoded and handed to handler when the read completes;
+     * a failed read is handed to it instead. Files that readPages reads
+     * page by page are read so on an I/O thread, but a mapped file, which
+     * has no I/O to wait for, is read before this returns.
+     *
+     * @throws IllegalArgumentException if page start does not exist
+     */
+    public <A> void readPagesAsync(final int start, int count, final A attachment,
+            final CompletionHandler<List<Page>, ? super A> handler) {
+        final int end = Math.min(start + count, numPages());
+        if (start < 0 || start >= end) {
+            throw new IllegalArgumentException("no page " + start + " in " + this.file.getPath());
+        }
+        if (this.mapped || this.compressed || !readsRuns()) {
+            final int n = count;
+            Runnable read = new Runnable() {
+                public void run() {
+                    List<Page> pages;
+                    try {
+                        pages = readPages(start, n);
+                    } catch (RuntimeException e) {
+                        handler.failed(e, attachment);
+                        return;
+                    }
+                    if (pages == null || pages.contains(null)) {
+                        handler.failed(new IOException("could not read pages " + start + " to " + (end - 1)
+                                + " of " + file.getPath()), attachment);
+                    } else {
+                        handler.completed(pages, attachment);
+                    }
+                }
+            };
+            if (this.mapped) {
+                read.run();
+            } else {
+                AIO_EXECUTOR.execute(read);
+            }
+            return;
+        }
+        final ByteBuffer run = ByteBuffer.allocate((end - start) * this.pageSize);
+        new Transfer(run, (long) start * this.pageSize, false, new CompletionHandler<Void, Void>() {
+            public void completed(Void result, Void ignored) {
+                List<Page> pages = new ArrayList<Page>(end - start);
+                try {
+                    for (int i = 0; i < end - start; i++) {
+                        byte[] data = Arrays.copyOfRange(run.array(), i * pageSize, (i + 1) * pageSize);
+                        TuplePage page = newPage(new HeapPageId(getId(), start + i), data);
+                        freeSpaceMap().observe(start + i, page.getFreeSpace());
+                        pages.add(page);
+                    }
+                } catch (IOException e) {
+                    handler.failed(e, attachment);
+                    return;
+                } catch (RuntimeException e) {
+                    // e.g. the table left the catalog; whoever waits must hear of it
+                    handler.failed(e, attachment);
+                    return;
+                }
+                handler.completed(pages, attachment);
+            }
+
+            public void failed(Throwable exc, Void ignored) {
+                handler.failed(exc, attachment);
+            }
+        }).start();
+    }
 
+    /**
+     * Writes the images of consecutive pages as writePages does, but
+     * asynchronously, with one write of the asynchronous channel. handler
+     * is given the number of pages written when the write completes, or
+     * the failure. A compressed file is written synchronously, and handler
+     * is called before this returns.
+     *
+     * @param firstPageNo the page number of images[0]
+     * @param images page images, each exactly one page long
+     */
+    public <A> void writePagesAsync(final int firstPageNo, final byte[][] images, final A attachment,
+            final CompletionHandler<Integer, ? super A> handler) {
+        if (this.compressed) {
+            try {
+                writePages(firstPageNo, images);
+            } catch (IOException e) {
+                handler.failed(e, attachment);
+                return;
+            }
+            handler.completed(images.length, attachment);
+            return;
+        }
+        ByteBuffer run = ByteBuffer.allocate(images.length * this.pageSize);
+        for (byte[] image : images) {
+            run.put(image, 0, this.pageSize);
+        }
+        run.flip();
+        new Transfer(run, (long) firstPageNo * this.pageSize, true, new CompletionHandler<Void, Void>() {
+            public void completed(Void result, Void ignored) {
+                grownTo(firstPageNo + images.length);
+                handler.completed(images.length, attachment);
+            }
+
+            public void failed(Throwable exc, Void ignored) {
+                handler.failed(exc, attachment);
+            }
+        }).start();
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        int pageNo = page.getId().pageNumber();
         byte[] newData = page.getPageData();
+        if (this.compressed) {
+            writeCompressed(pageNo, newData);
+        } else {
+            write(ByteBuffer.wrap(newData, 0, this.pageSize), (long) pageNo * this.pageSize);
+        }
+        grownTo(pageNo + 1);
 
-        raf.write(newData, 0, this.pageSize);
-        
         page.markDirty(false, null);
+    }
 
-        raf.close();
-
+    /**
+     * Writes the images of consecutive pages, starting at page firstPageNo,
+     * with a single sequential write.
+     *
+     * @param firstPageNo the page number of images[0]
+     * @param images page images, each exactly one page long
+     */
+    public void writePages(int firstPageNo, byte[][] images) throws IOException {
+        if (this.compressed) {
+            for (int i = 0; i < images.length; i++) {
+                writeCompressed(firstPageNo + i, images[i]);
+            }
+            grownTo(firstPageNo + images.length);
+            return;
+        }
+        byte[] run = new byte[images.length * this.pageSize];
+        for (int i = 0; i < images.length; i++) {
+            System.arraycopy(images[i], 0, run, i * this.pageSize, this.pageSize);
+        }
+        write(ByteBuffer.wrap(run), (long) firstPageNo * this.pageSize);
+        grownTo(firstPageNo + images.length);
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
-        return (int) (this.file.length() / (long)this.pageSize);
+        int count = this.pageCount.get();
+        if (count < 0) {
+            try {
+                getChannel();
+            } catch (FileNotFoundException e) {
+                return 0;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return (int) (this.file.length() / (long)this.pageSize);
+            }
+            count = this.pageCount.get();
+        }
+        return count;
     }
 
-    public HeapPage getFreePage(TransactionId tid) 
+    /**
+     * Cuts the file down to its first pages pages, as a {@link Vacuum} does
+     * once the pages past them are empty, unless the file no longer has
+     * expected pages. The caller makes sure that no transaction can use the
+     * pages cut off, and drops them from the buffer pool afterwards.
+     * @return true if the file was truncated
+     * <p>
+     * A mapped file only forgets the pages: pages still decoded from the
+     * mapping may point past the new end, and touching a mapping past the
+     * end of its file faults. Appended pages reuse the bytes, and reopening
+     * the file brings the pages back, empty.
+     */
+    synchronized boolean truncate(int pages, int expected) throws IOException {
+        if (pages >= expected || numPages() != expected) {
+            // a page appended since the caller counted would be cut off too
+            return false;
+        }
+        if (this.compressed) {
+            // the room of the pages cut off may be anywhere; the file can
+            // only shrink down to the room of the last page left
+            getChannel().truncate(directory().truncate(pages));
+        } else if (!this.mapped) {
+            getChannel().truncate((long) pages * this.pageSize);
+        }
+        this.pageCount.set(pages);
+        freeSpaceMap().truncate(pages);
+        return true;
+    }
+
+    /**
+     * Closes the channel of this file. It is reopened if the file is used
+     * again.
+     */
+    public synchronized void close() {
+        if (this.freeSpace != null) {
+            try {
+                this.freeSpace.save();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.freeSpace = null;
+        }
+        if (this.directory != null) {
+            try {
+                this.directory.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.directory = null;
+        }
+        if (this.asyncChannel != null) {
+            // I/O still outstanding fails
+            try {
+                this.asyncChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.asyncChannel = null;
+        }
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.channel = null;
+        }
+        // mappings stay valid after the channel is closed; they are unmapped
+        // once no page refers to them any more
+        this.chunks = new MappedByteBuffer[0];
+        this.pageCount.set(-1);
+    }
+
+    /**
+     * @return a read-only view of page pageNo in the mapping of the file,
+     *   mapping or remapping its chunk if it does not cover the page yet
+     */
+    private ByteBuffer mappedPage(int pageNo) throws IOException {
+        int chunkPages = Math.max(1, MAP_CHUNK_BYTES / this.pageSize);
+        int chunk = pageNo / chunkPages;
+        int offset = (pageNo - chunk * chunkPages) * this.pageSize;
+        MappedByteBuffer[] chunks = this.chunks;
+        MappedByteBuffer map = chunk < chunks.length ? chunks[chunk] : null;
+        if (map == null || map.capacity() < offset + this.pageSize) {
+            map = mapChunk(chunk, chunkPages);
+        }
+        ByteBuffer page = map.duplicate();
+        page.position(offset);
+        page.limit(offset + this.pageSize);
+        return page.slice();
+    }
+
+    private synchronized MappedByteBuffer mapChunk(int chunk, int chunkPages) throws IOException {
+        long start = (long) chunk * chunkPages * this.pageSize;
+        // only whole pages that exist are mapped: touching a mapping past
+        // the end of the file faults
+        int pages = Math.min(chunkPages, numPages() - chunk * chunkPages);
+        MappedByteBuffer map;
+        try {
+            map = getChannel().map(FileChannel.MapMode.READ_ONLY, start, (long) pages * this.pageSize);
+        } catch (ClosedChannelException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw e;
+            }
+            map = getChannel().map(FileChannel.MapMode.READ_ONLY, start, (long) pages * this.pageSize);
+        }
+        MappedByteBuffer[] chunks = this.chunks;
+        if (chunk >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunk + 1);
+        } else {
+            chunks = chunks.clone();
+        }
+        chunks[chunk] = map;
+        this.chunks = chunks;
+        return map;
+    }
+
+    /**
+     * @return the open channel of this file, opening it if necessary; also
+     *   reopens a channel closed by an interrupt of some thread using it
+     * @throws FileNotFoundException if the file does not exist
+     */
+    private synchronized FileChannel getChannel() throws IOException {
+        if (this.channel == null || !this.channel.isOpen()) {
+            if (!this.file.exists()) {
+                throw new FileNotFoundException(this.file.getPath());
+            }
+            RandomAccessFile raf;
+            try {
+                raf = new RandomAccessFile(this.file, "rw");
+            } catch (FileNotFoundException e) {
+                // no write permission: the table can still be read
+                raf = new RandomAccessFile(this.file, "r");
+            }
+            this.channel = raf.getChannel();
+            if (this.pageCount.get() < 0 && this.compressed) {
+                this.pageCount.set(directory().numPages());
+            } else if (this.pageCount.get() < 0) {
+                this.pageCount.set((int) (this.channel.size() / this.pageSize));
+            }
+        }
+        return this.channel;
+    }
+
+    /** Fills buf from the file, starting at position. */
+    private void read(ByteBuffer buf, long position) throws IOException {
+        FileChannel channel = getChannel();
+        int start = buf.position();
+        while (buf.hasRemaining()) {
+            int n;
+            try {
+                n = channel.read(buf, position + buf.position() - start);
+            } catch (ClosedChannelException e) {
+                // closed under us by another thread's interrupt; try again
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                channel = getChannel();
+                continue;
+            }
+            if (n < 0) {
+                throw new EOFException("page beyond the end of " + this.file.getPath());
+            }
+        }
+    }
+
+    /**
+     * Fills bufs in order from the file, starting at position, with as few
+     * scatter reads as the channel allows.
+     */
+    private void read(ByteBuffer[] bufs, long position) throws IOException {
+        long total = 0;
+        for (ByteBuffer buf : bufs) {
+            total += buf.remaining();
+        }
+        long done = 0;
+        int first = 0;
+        while (done < total) {
+            FileChannel channel = getChannel();
+            long n;
+            try {
+                // a scatter read goes from the position of the channel,
+                // which scatter reads share; positional reads leave it be
+                synchronized (this.positionLock) {
+                    channel.position(position + done);
+                    n = channel.read(bufs, first, bufs.length - first);
+                }
+            } catch (ClosedChannelException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                continue;
+            }
+            if (n < 0) {
+                throw new EOFException("page beyond the end of " + this.file.getPath());
+            }
+            done += n;
+            while (first < bufs.length && !bufs[first].hasRemaining()) {
+                first++;
+            }
+        }
+    }
+
+    /**
+     * An asynchronous transfer of all of a buffer between the file and
+     * memory, reissued from where it stopped until nothing remains.
+     */
+    private class Transfer implements CompletionHandler<Integer, Void> {
+        /**
+         * @param buf the bytes to write, or the room to read into
+         * @param position where buf starts in the file
+         * @param write true to write buf, false to read it
+         * @param done called once all of buf is transferred, or it failed
+         */
+        Transfer(ByteBuffer buf, long position, boolean write, CompletionHandler<Void, Void> done) {
+            this.buf = buf;
+            this.position = position;
+            this.write = write;
+            this.done = done;
+        }
+
+        void start() {
+            try {
+                AsynchronousFileChannel channel = getAsyncChannel();
+                long at = this.position + this.buf.position();
+                if (this.write) {
+                    channel.write(this.buf, at, null, this);
+                } else {
+                    channel.read(this.buf, at, null, this);
+                }
+            } catch (IOException e) {
+                this.done.failed(e, null);
+            }
+        }
+
+        public void completed(Integer n, Void ignored) {
+            if (n < 0) {
+                this.done.failed(new EOFException("page beyond the end of " + file.getPath()), null);
+            } else if (this.buf.hasRemaining()) {
+                start();
+            } else {
+                this.done.completed(null, null);
+            }
+        }
+
+        public void failed(Throwable exc, Void ignored) {
+            this.done.failed(exc, null);
+        }
+
+        private final ByteBuffer buf;
+        private final long position;
+        private final boolean write;
+        private final CompletionHandler<Void, Void> done;
+    }
+
+    /**
+     * @return the open asynchronous channel of this file, opening it, and
+     *   creating the file, if necessary
+     */
+    private synchronized AsynchronousFileChannel getAsyncChannel() throws IOException {
+        if (this.asyncChannel == null || !this.asyncChannel.isOpen()) {
+            Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.READ);
+            if (!this.file.exists() || this.file.canWrite()) {
+                options.add(StandardOpenOption.WRITE);
+                options.add(StandardOpenOption.CREATE);
+            }
+            this.asyncChannel = AsynchronousFileChannel.open(this.file.toPath(), options, AIO_EXECUTOR);
+        }
+        return this.asyncChannel;
+    }
+
+    /** Writes all of buf to the file, starting at position. */
+    private void write(ByteBuffer buf, long position) throws IOException {
+        if (!this.file.exists()) {
+            // writing creates the file, as RandomAccessFile did
+            new RandomAccessFile(this.file, "rw").close();
+        }
+        FileChannel channel = getChannel();
+        int start = buf.position();
+        while (buf.hasRemaining()) {
+            try {
+                channel.write(buf, position + buf.position() - start);
+            } catch (ClosedChannelException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                channel = getChannel();
+            }
+        }
+    }
+
+    /** @return the page directory of a compressed file, opening it if needed */
+    private synchronized PageDirectory directory() throws IOException {
+        if (this.directory == null) {
+            this.directory = new PageDirectory(sidecar(this.file, ".pdir"));
+        }
+        return this.directory;
+    }
+
+    /** Reads and inflates the image of a page of a compressed file. */
+    private void readCompressed(int pageNo, byte[] pageData) throws IOException {
+        PageDirectory directory = directory();
+        long offset;
+        int length;
+        synchronized (directory) {
+            offset = directory.getOffset(pageNo);
+            length = directory.getLength(pageNo);
+        }
+        if (length == 0) {
+            return; // a page never written, all zeroes
+        }
+        byte[] packed = new byte[length];
+        read(ByteBuffer.wrap(packed), offset);
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(packed);
+        try {
+            int n = 0;
+            while (n < pageData.length && !inflater.finished()) {
+                int got = inflater.inflate(pageData, n, pageData.length - n);
+                if (got == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += got;
+            }
+            if (n != pageData.length) {
+                throw new IOException("compressed page " + pageNo + " of " + this.file + " is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed page " + pageNo + " of " + this.file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deflates the image of a page and writes it over its old image if it
+     * fits there, at the end of the data file otherwise.
+     */
+    private void writeCompressed(int pageNo, byte[] image) throws IOException {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(image, 0, this.pageSize);
+        deflater.finish();
+        byte[] packed = new byte[this.pageSize + this.pageSize / 8 + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == packed.length) {
+                packed = Arrays.copyOf(packed, packed.length * 2);
+            }
+            length += deflater.deflate(packed, length, packed.length - length);
+        }
+
+        PageDirectory directory = directory();
+        // the image is written before its entry, and one page at a time
+        synchronized (directory) {
+            long offset;
+            int capacity = directory.getCapacity(pageNo);
+            if (length <= capacity) {
+                offset = directory.getOffset(pageNo);
+            } else {
+                capacity = (length + COMPRESSED_ALIGNMENT - 1) / COMPRESSED_ALIGNMENT * COMPRESSED_ALIGNMENT;
+                offset = directory.reserve(capacity);
+            }
+            write(ByteBuffer.wrap(packed, 0, length), offset);
+            directory.put(pageNo, offset, length, capacity);
+        }
+    }
+
+    // codecs are not thread safe and costly to create, so each thread keeps one
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    /** Records that the file has at least pages pages. */
+    private void grownTo(int pages) {
+        while (true) {
+            int count = this.pageCount.get();
+            if (count >= pages || this.pageCount.compareAndSet(count, pages)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decodes a page image in the format of this file.
+     */
+    TuplePage newPage(HeapPageId pid, byte[] data) throws IOException {
+        if (this.format == Format.SLOTTED) {
+            return new SlottedPage(pid, data);
+        }
+        if (this.format == Format.PAX) {
+            return new PaxPage(pid, data);
+        }
+        return new HeapPage(pid, data);
+    }
+
+    /**
+     * @return the free space t needs on a page of this file, in the units of
+     *   {@link TuplePage#getFreeSpace}
+     */
+    public int spaceFor(Tuple t) {
+        if (this.format == Format.SLOTTED) {
+            return SlottedPage.spaceFor(this.tupleDesc, t);
+        }
+        return 1;
+    }
+
+    /**
+     * Returns the free space map of this file, loading it on first use.
+     */
+    synchronized FreeSpaceMap freeSpaceMap() {
+        if (this.freeSpace == null) {
+            this.freeSpace = new FreeSpaceMap(sidecar(this.file, ".fsm"), numPages());
+        }
+        return this.freeSpace;
+    }
+
+    /**
+     * Saves the free space map of this file to its sidecar file, if it was
+     * loaded and changed since it was last saved.
+     */
+    public void saveFreeSpaceMap() throws IOException {
+        FreeSpaceMap freeSpace;
+        synchronized (this) {
+            freeSpace = this.freeSpace;
+        }
+        if (freeSpace != null) {
+            freeSpace.save();
+        }
+    }
+
+    /**
+     * @return the file next to f with the same name but for its extension
+     */
+    static File sidecar(File f, String extension) {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(f.getAbsoluteFile().getParentFile(), name + extension);
+    }
+
+    /**
+     * Returns a page of this file with room for t, locked READ_WRITE and
+     * pinned for tid, appending an empty page if no page has room. Pages are
+     * picked through the free space map, and probed with shared locks so a
+     * full page is not locked exclusively.
+     */
+    public TuplePage getFreePage(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException
+    {
+        return getFreePage(tid, t, spaceFor(t));
+    }
+
+    /**
+     * Returns a page with room for t as {@link #getFreePage(TransactionId, Tuple)}
+     * does, but if no page has room, appends empty pages with room for
+     * appendSpace in one write.
+     */
+    private TuplePage getFreePage(TransactionId tid, Tuple t, int appendSpace)
+            throws DbException, IOException, TransactionAbortedException
     {
+        BufferPool bufferPool = Database.getBufferPool();
+        FreeSpaceMap freeSpace = freeSpaceMap();
+        int need = spaceFor(t);
+        while (true) {
+            TuplePage hpage = findFreePage(tid, need);
+            if (hpage != null) {
+                return hpage;
+            }
+
+            // no page has room: extend the file by empty pages and fill them
+            // through the buffer pool like any other page
+            HeapPageId hid = appendEmptyPages(appendSpace);
+            boolean alreadyLocked = bufferPool.holdsLock(tid, hid);
+            hpage = (TuplePage) bufferPool.getPage(tid, hid, Permissions.READ_WRITE);
+            // the new pages are in the free space map before we lock them, so
+            // another inserter may have filled this one first
+            int free = hpage.getFreeSpace();
+            if (free >= need) {
+                return hpage;
+            }
+            bufferPool.unpinPage(tid, hid);
+            freeSpace.set(hid.pageNumber(), free);
+            if (!alreadyLocked)
+                bufferPool.releasePage(tid, hid);
+        }
+    }
 
+    /**
+     * Search half of getFreePage: returns a page of this file with room for
+     * need, locked READ_WRITE and pinned for tid, or null if no page has
+     * room.
+     */
+    private TuplePage findFreePage(TransactionId tid, int need)
+            throws DbException, TransactionAbortedException
+    {
+        BufferPool bufferPool = Database.getBufferPool();
+        FreeSpaceMap freeSpace = freeSpaceMap();
+        int len = this.numPages();
+        for (int i = freeSpace.findPage(0, need); i >= 0 && i < len; i = freeSpace.findPage(i + 1, need))
+        {
+            HeapPageId pid = new HeapPageId(this.getId(), i);
+            boolean alreadyLocked = bufferPool.holdsLock(tid, pid);
+            TuplePage hpage;
+            try {
+                hpage = (TuplePage) bufferPool.getPage(tid, pid, Permissions.READ_ONLY);
+            } catch (IllegalArgumentException e) {
+                if (i < this.numPages()) {
+                    throw e;
+                }
+                // a vacuum truncated the page while we waited for its lock
+                if (!alreadyLocked)
+                    bufferPool.releasePage(tid, pid);
+                break;
+            }
+            int free = hpage.getFreeSpace();
+            bufferPool.unpinPage(tid, pid);
 
+            if (free >= need) {
+                hpage = (TuplePage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
+                // another transaction may have filled it before the upgrade
+                free = hpage.getFreeSpace();
+                if (free >= need) {
+                    return hpage;
+                }
+                bufferPool.unpinPage(tid, pid);
+            }
+            freeSpace.set(i, free);
+            if (!alreadyLocked)
+                bufferPool.releasePage(tid, pid);
+        }
         return null;
     }
 
@@ -220,34 +1160,79 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException 
     {
-        HeapPage hpage = null;
+        BufferPool bufferPool = Database.getBufferPool();
         ArrayList<Page> ret = new ArrayList<Page>();
 
-        int len = this.numPages();
-
-        for (int i = 0; i < len; i++) 
-        {
-            PageId pid = new HeapPageId(this.getId(), i);
-            hpage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-
-            if (hpage.getNumEmptySlots() > 0)
-                break;
+        TuplePage hpage = getFreePage(tid, t);
+        try {
+            hpage.insertTuple(t);
+            hpage.markDirty(true, tid);
+            freeSpaceMap().set(hpage.getId().pageNumber(), hpage.getFreeSpace());
+        } finally {
+            bufferPool.unpinPage(tid, hpage.getId());
         }
+        ret.add(hpage);
+        return ret;
+    }
 
-        if (hpage != null & hpage.getNumEmptySlots() == 0 )
-        {
-            HeapPageId hid = new HeapPageId(this.getId(), this.numPages());
-            hpage = new HeapPage(hid, HeapPage.createEmptyPageData());            
+    /**
+     * Inserts a batch of tuples a page at a time: each page is fetched once,
+     * filled with as many of the tuples as fit, and marked dirty once. When
+     * no page has room left, the empty pages the rest of the batch needs are
+     * appended in one write.
+     *
+     * @return the pages dirtied, each once
+     * @see #insertTuple
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException
+    {
+        BufferPool bufferPool = Database.getBufferPool();
+        ArrayList<Page> ret = new ArrayList<Page>();
+        // space the tuples from each one on need
+        int[] rest = new int[tuples.size() + 1];
+        for (int k = tuples.size() - 1; k >= 0; k--) {
+            rest[k] = rest[k + 1] + spaceFor(tuples.get(k));
         }
 
-        hpage.insertTuple(t);
-        ret.add(hpage);
-        hpage.markDirty(true, tid);
-        
-        this.writePage(hpage);
-
+        int next = 0;
+        while (next < tuples.size()) {
+            TuplePage hpage = getFreePage(tid, tuples.get(next), rest[next]);
+            try {
+                while (next < tuples.size() && hpage.getFreeSpace() >= rest[next] - rest[next + 1]) {
+                    hpage.insertTuple(tuples.get(next));
+                    next++;
+                }
+                hpage.markDirty(true, tid);
+                freeSpaceMap().set(hpage.getId().pageNumber(), hpage.getFreeSpace());
+            } finally {
+                bufferPool.unpinPage(tid, hpage.getId());
+            }
+            if (!ret.contains(hpage)) {
+                ret.add(hpage);
+            }
+        }
         return ret;
-        // not necessary for lab1
+    }
+
+    /**
+     * Writes empty pages with room for space at the end of the file, at
+     * least one.
+     * @return the id of the first new page
+     */
+    private synchronized HeapPageId appendEmptyPages(int space) throws IOException {
+        HeapPageId hid = new HeapPageId(this.getId(), this.numPages());
+        int room = newPage(hid, HeapPage.createEmptyPageData()).getFreeSpace();
+        byte[][] images = new byte[Math.max(1, (space + room - 1) / room)][];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = HeapPage.createEmptyPageData();
+        }
+        this.writePages(hid.pageNumber(), images);
+        // so the rest of a batch finds them
+        for (int i = 0; i < images.length; i++) {
+            freeSpaceMap().set(hid.pageNumber() + i, room);
+        }
+        return hid;
     }
 
     // see DbFile.java for javadocs
@@ -256,19 +1241,90 @@ public class HeapFile implements DbFile {
         ArrayList<Page> ret = new ArrayList<Page>();
 
         RecordId rid = t.getRecordId();
-        HeapPage hpage = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
-        hpage.deleteTuple(t);
-
-        hpage.markDirty(true, tid);
+        BufferPool bufferPool = Database.getBufferPool();
+        TuplePage hpage = (TuplePage) bufferPool.getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        try {
+            hpage.deleteTuple(t);
+            hpage.markDirty(true, tid);
+            freeSpaceMap().set(rid.getPageId().pageNumber(), hpage.getFreeSpace());
+        } finally {
+            bufferPool.unpinPage(tid, rid.getPageId());
+        }
         ret.add(hpage);
 
         return ret;
     }
 
+    /**
+     * Deletes a batch of tuples a page at a time: the tuples are grouped by
+     * the page they are on, and each page is fetched once, has all of its
+     * tuples of the batch deleted together, and is marked dirty once.
+     *
+     * @return the pages dirtied, each once
+     * @see #deleteTuple
+     * @see TuplePage#deleteTuples
+     */
+    public ArrayList<Page> deleteTuples(TransactionId tid, List<Tuple> tuples)
+            throws DbException, TransactionAbortedException {
+        Map<PageId, List<Tuple>> byPage = new LinkedHashMap<PageId, List<Tuple>>();
+        for (Tuple t : tuples) {
+            PageId pid = t.getRecordId().getPageId();
+            List<Tuple> onPage = byPage.get(pid);
+            if (onPage == null) {
+                onPage = new ArrayList<Tuple>();
+                byPage.put(pid, onPage);
+            }
+            onPage.add(t);
+        }
+
+        BufferPool bufferPool = Database.getBufferPool();
+        ArrayList<Page> ret = new ArrayList<Page>(byPage.size());
+        for (Map.Entry<PageId, List<Tuple>> e : byPage.entrySet()) {
+            PageId pid = e.getKey();
+            TuplePage hpage = (TuplePage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
+            try {
+                hpage.deleteTuples(e.getValue());
+                hpage.markDirty(true, tid);
+                freeSpaceMap().set(pid.pageNumber(), hpage.getFreeSpace());
+            } finally {
+                bufferPool.unpinPage(tid, pid);
+            }
+            ret.add(hpage);
+        }
+        return ret;
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         return new HeapFileIterator(tid, this);
     }
 
+    /**
+     * Returns an iterator over the tuples of the pages of this file that
+     * may hold a tuple satisfying filter. Only pages of the PAX format keep
+     * the stats to rule a page out; the caller still has to apply filter.
+     * A SeqScan under a Filter scans this way, see {@link SeqScan#setFilter}.
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate filter) {
+        return new HeapFileIterator(tid, this, filter);
+    }
+
+    private final Format format;
+    private final boolean mapped;
+    private final boolean compressed;
+    // page directory of a compressed file, opened on first use
+    private PageDirectory directory;
+    private FileChannel channel;
+    private final Object positionLock = new Object();
+    // opened on first asynchronous I/O
+    private AsynchronousFileChannel asyncChannel;
+    // mappings of a mapped file by chunk; replaced, never changed, when a
+    // chunk is (re)mapped
+    private volatile MappedByteBuffer[] chunks;
+    /** Number of pages in the file, or -1 until the channel is opened */
+    private final AtomicInteger pageCount;
+    // loaded on first use, saved and dropped by close
+    private FreeSpaceMap freeSpace;
+
 
 }
\ No newline at end of file
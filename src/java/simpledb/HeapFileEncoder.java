@@ -2,13 +2,14 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
  * an array of tuples and converts it to
  * pages of binary data in the appropriate format for simpledb heap pages
  * Pages are padded out to a specified length, and written consecutive in a
- * data file.
+ * data file. Heap pages are written by a {@link BulkLoader}.
  */
 
 public class HeapFileEncoder {
@@ -26,29 +27,23 @@ public class HeapFileEncoder {
    * @param outFile The output file to write data to
    * @param npagebytes The number of bytes per page in the output file
    * @param numFields the number of fields in each input tuple
-   * @throws IOException if the temporary/output file can't be opened
+   * @throws IOException if the output file can't be opened
    */
   public static void convert(ArrayList<ArrayList<Integer>> tuples, File outFile, int npagebytes, int numFields) throws IOException {
-      File tempInput = File.createTempFile("tempTable", ".txt");
-      tempInput.deleteOnExit();
-      BufferedWriter bw = new BufferedWriter(new FileWriter(tempInput));
-      for (ArrayList<Integer> tuple : tuples) {
-          int writtenFields = 0;
-          for (Integer field : tuple) {
-              writtenFields++;
-              if (writtenFields > numFields) {
+      Type[] ts = new Type[numFields];
+      Arrays.fill(ts, Type.INT_TYPE);
+      BulkLoader loader = new BulkLoader(outFile, npagebytes, ts);
+      try {
+          for (ArrayList<Integer> tuple : tuples) {
+              if (tuple.size() > numFields) {
                   throw new RuntimeException("Tuple has more than " + numFields + " fields: (" +
                           Utility.listToString(tuple) + ")");
               }
-              bw.write(String.valueOf(field));
-              if (writtenFields < numFields) {
-                  bw.write(',');
-              }
+              loader.addInts(tuple);
           }
-          bw.write('\n');
+      } finally {
+          loader.close();
       }
-      bw.close();
-      convert(tempInput, outFile, npagebytes, numFields);
   }
 
       public static void convert(File inFile, File outFile, int npagebytes,
@@ -84,143 +79,127 @@ public class HeapFileEncoder {
     * @param outFile The output file to write data to
     * @param npagebytes The number of bytes per page in the output file
     * @param numFields the number of fields in each input line/output tuple
-    * @throws IOException if the input/output file can't be opened or a
-    *   malformed input line is encountered
+    * @throws IOException if the input/output file can't be opened;
+    *   malformed input lines are reported and skipped
     */
   public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator, 1);
+  }
 
-      int nrecbytes = 0;
-      for (int i = 0; i < numFields ; i++) {
-          nrecbytes += typeAr[i].getLen();
+  /** Convert the specified input text file into a binary page file, as
+   * {@link #convert(File, File, int, int, Type[], char)} does, parsing the
+   * input on parseThreads threads.
+   *
+   * @see BulkLoader
+   */
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, int parseThreads)
+      throws IOException {
+      BulkLoader loader = new BulkLoader(outFile, npagebytes, Arrays.copyOf(typeAr, numFields));
+      loader.setParseThreads(parseThreads);
+      Reader in = new FileReader(inFile);
+      try {
+          loader.load(in, fieldSeparator);
+      } finally {
+          in.close();
+          loader.close();
       }
-      int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
-      
-    //  per record, we need one bit; there are nrecords per page, so we need
-    // nrecords bits, i.e., ((nrecords/32)+1) integers.
-    int nheaderbytes = (nrecords / 8);
-    if (nheaderbytes * 8 < nrecords)
-        nheaderbytes++;  //ceiling
-    int nheaderbits = nheaderbytes * 8;
-
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
-    // our numbers probably won't be much larger than 1024 digits
-    char buf[] = new char[1024];
+  }
 
-    int curpos = 0;
-    int recordcount = 0;
-    int npages = 0;
-    int fieldNo = 0;
+  /** Convert the specified input text file into a binary page file of
+   * {@link SlottedPage}s, which store strings at their real length. The
+   * input is read as for {@link #convert(File, File, int, int, Type[], char)};
+   * lines that cannot be parsed are reported and skipped.
+   *
+   * @see SlottedPage
+   * @param inFile The input file to read data from
+   * @param outFile The output file to write data to
+   * @param npagebytes The number of bytes per page in the output file; must
+   *   be the page size of the buffer pool
+   * @param typeAr the types of the fields of each input line/output tuple
+   * @param fieldSeparator the character between the fields of a line
+   * @throws IOException if the input/output file can't be opened
+   */
+  public static void convertSlotted(File inFile, File outFile, int npagebytes,
+                 Type[] typeAr, char fieldSeparator)
+      throws IOException {
+      convertPages(inFile, outFile, npagebytes, typeAr, fieldSeparator, HeapFile.Format.SLOTTED);
+  }
 
-    ByteArrayOutputStream headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-    DataOutputStream headerStream = new DataOutputStream(headerBAOS);
-    ByteArrayOutputStream pageBAOS = new ByteArrayOutputStream(npagebytes);
-    DataOutputStream pageStream = new DataOutputStream(pageBAOS);
+  /** Convert the specified input text file into a binary page file of
+   * {@link PaxPage}s, which store the values of each column together. The
+   * input is read as for {@link #convertSlotted}.
+   *
+   * @see PaxPage
+   */
+  public static void convertPax(File inFile, File outFile, int npagebytes,
+                 Type[] typeAr, char fieldSeparator)
+      throws IOException {
+      convertPages(inFile, outFile, npagebytes, typeAr, fieldSeparator, HeapFile.Format.PAX);
+  }
 
-    boolean done = false;
-    boolean first = true;
-    while (!done) {
-        int c = br.read();
-        
-        // Ignore Windows/Notepad special line endings
-        if (c == '\r')
-            continue;
+  private static TuplePage newPage(HeapFile.Format format, int pageNo, TupleDesc td, int npagebytes)
+      throws IOException {
+      HeapPageId pid = new HeapPageId(0, pageNo);
+      if (format == HeapFile.Format.SLOTTED)
+          return new SlottedPage(pid, td, new byte[npagebytes]);
+      return new PaxPage(pid, td, new byte[npagebytes]);
+  }
 
-        if (c == '\n') {
-            if (first)
-                continue;
-            recordcount++;
-            first = true;
-        } else
-            first = false;
-        if (c == fieldSeparator || c == '\n' || c == '\r') {
-            String s = new String(buf, 0, curpos);
-            if (typeAr[fieldNo] == Type.INT_TYPE) {
-                try {
-                    pageStream.writeInt(Integer.parseInt(s.trim()));
-                } catch (NumberFormatException e) {
-                    System.out.println ("BAD LINE : " + s);
-                }
-            }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
-                s = s.trim();
-                int overflow = Type.STRING_LEN - s.length();
-                if (overflow < 0) {
-                    String news = s.substring(0,Type.STRING_LEN);
-                    s  = news;
-                }
-                pageStream.writeInt(s.length());
-                pageStream.writeBytes(s);
-                while (overflow-- > 0)
-                    pageStream.write((byte)0);
-            }
-            curpos = 0;
-            if (c == '\n')
-                fieldNo = 0;
-            else
-                fieldNo++;
-            
-        } else if (c == -1) {
-            done = true;
-            
-        } else {
-            buf[curpos++] = (char)c;
-            continue;
-        }
-        
-        // if we wrote a full page of records, or if we're done altogether,
-        // write out the header of the page.
-        //
-        // in the header, write a 1 for bits that correspond to records we've
-        // written and 0 for empty slots.
-        //
-        // when we're done, also flush the page to disk, but only if it has
-        // records on it.  however, if this file is empty, do flush an empty
-        // page to disk.
-        if (recordcount >= nrecords
-            || done && recordcount > 0
-            || done && npages == 0) {
-            int i = 0;
-            byte headerbyte = 0;
-            
-            for (i=0; i<nheaderbits; i++) {
-                if (i < recordcount)
-                    headerbyte |= (1 << (i % 8));
-                
-                if (((i+1) % 8) == 0) {
-                    headerStream.writeByte(headerbyte);
-                    headerbyte = 0;
-                }
-            }
-            
-            if (i % 8 > 0)
-                headerStream.writeByte(headerbyte);
-            
-            // pad the rest of the page with zeroes
-            
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
-                pageStream.writeByte(0);
-            
-            // write header and body to file
-            headerStream.flush();
-            headerBAOS.writeTo(os);
-            pageStream.flush();
-            pageBAOS.writeTo(os);
-            
-            // reset header and body for next page
-            headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-            headerStream = new DataOutputStream(headerBAOS);
-            pageBAOS = new ByteArrayOutputStream(npagebytes);
-            pageStream = new DataOutputStream(pageBAOS);
-            
-            recordcount = 0;
-            npages++;
-        }
-    }
-    br.close();
-    os.close();
+  private static void convertPages(File inFile, File outFile, int npagebytes,
+                 Type[] typeAr, char fieldSeparator, HeapFile.Format format)
+      throws IOException {
+      if (npagebytes != BufferPool.getPageSize()) {
+          throw new IllegalArgumentException(format + " pages must have the page size of the buffer pool");
+      }
+      TupleDesc td = new TupleDesc(typeAr);
+      BufferedReader br = new BufferedReader(new FileReader(inFile));
+      FileOutputStream os = new FileOutputStream(outFile);
+      try {
+          int npages = 0;
+          int ntuples = 0;
+          TuplePage page = newPage(format, npages, td, npagebytes);
+          String line;
+          while ((line = br.readLine()) != null) {
+              if (line.trim().length() == 0)
+                  continue;
+              String[] values = line.split(java.util.regex.Pattern.quote(String.valueOf(fieldSeparator)), -1);
+              Tuple t = new Tuple(td);
+              try {
+                  for (int i = 0; i < typeAr.length; i++) {
+                      String v = values[i].trim();
+                      if (typeAr[i] == Type.INT_TYPE)
+                          t.setField(i, new IntField(Integer.parseInt(v)));
+                      else
+                          t.setField(i, new StringField(v, Type.STRING_LEN));
+                  }
+              } catch (RuntimeException e) {
+                  // a bad number, or too few fields
+                  System.out.println ("BAD LINE : " + line);
+                  continue;
+              }
+              int need = format == HeapFile.Format.SLOTTED ? SlottedPage.spaceFor(td, t) : 1;
+              if (page.getFreeSpace() < need) {
+                  os.write(page.getPageData());
+                  npages++;
+                  ntuples = 0;
+                  page = newPage(format, npages, td, npagebytes);
+              }
+              try {
+                  page.insertTuple(t);
+                  ntuples++;
+              } catch (DbException e) {
+                  throw new IOException("tuple does not fit on a page: " + line);
+              }
+          }
+          // the last page, or an empty page for an empty file
+          if (ntuples > 0 || npages == 0)
+              os.write(page.getPageData());
+      } finally {
+          br.close();
+          os.close();
+      }
   }
 }
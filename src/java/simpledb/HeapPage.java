@@ -2,16 +2,23 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps its serialized image, which is authoritative: inserts and
+ * deletes patch the header bit and the slot they change, and serializing
+ * the page is a plain copy of the image. The methods that change or
+ * serialize the page synchronize on it, so the background writer always
+ * copies a consistent image.
  *
  * @see HeapFile
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements TuplePage {
 
     final HeapPageId pid;
     final TupleDesc td;
@@ -22,7 +29,14 @@ public class HeapPage implements Page {
     private boolean dirty;
     private TransactionId dirty_tid;
 
+    // serialized page; shared with the source it was decoded from until the
+    // page is first changed, then a private copy
+    private ByteBuffer image;
+    private boolean imageShared;
+
     byte[] oldData;
+    // region of a mapped file the before image is still to be copied from
+    private ByteBuffer oldSource;
     private final Byte oldDataLock=new Byte((byte)0);
 
     /**
@@ -37,6 +51,9 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page works on a copy of data, and keeps data itself as its before
+     * image, so data must not be changed afterwards.
+     * <p>
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -45,24 +62,70 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < BufferPool.getPageSize()) {
+            throw new IOException("short page image of " + data.length + " bytes for " + id);
+        }
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        System.arraycopy(data, 0, header, 0, header.length);
+
+        image = ByteBuffer.wrap(Arrays.copyOf(data, BufferPool.getPageSize()));
+        imageShared = false;
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        readTuples(image, 0);
+
+        // the image read is the before image; no need to encode it again
+        synchronized(oldDataLock)
+        {
+            oldData = data;
+        }
+    }
+
+    /**
+     * Create a HeapPage from the page image at the position of buf, decoding
+     * it in place. Used for pages of memory mapped files, which are not
+     * copied into a byte array first. The page keeps buf to take its before
+     * image from, so the region must not change before the page is dirtied.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer buf) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getNumTuples();
+        ByteBuffer page = buf.duplicate();
+        page.limit(page.position() + BufferPool.getPageSize());
+        page = page.slice();
+
+        header = new byte[getHeaderSize()];
+        page.get(header);
+
+        image = page;
+        imageShared = true;
+        tuples = new Tuple[numSlots];
+        readTuples(page, 0);
+
+        synchronized(oldDataLock)
+        {
+            oldSource = page;
         }
-        dis.close();
+    }
 
-        setBeforeImage();
+    /**
+     * Creates a lazy tuple for every used slot of the page image in buf,
+     * starting at index start. Fields are only decoded when asked for.
+     */
+    private void readTuples(ByteBuffer buf, int start) {
+        int tupleSize = td.getSize();
+        int first = start + header.length;
+        for (int i=0; i<tuples.length; i++) {
+            if (isSlotUsed(i)) {
+                Tuple t = new Tuple(td, buf, first + i * tupleSize);
+                t.setRecordId(new RecordId(pid, i));
+                tuples[i] = t;
+            }
+        }
     }
 
     /** Retrieve the number of tuples on this page.
@@ -88,7 +151,7 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                oldDataRef = beforeImageData();
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -100,51 +163,35 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
+        // serialize before taking oldDataLock: getPageData latches the page
+        byte[] data = getPageData();
         synchronized(oldDataLock)
         {
-            oldData = getPageData().clone();
+            oldData = data;
+            oldSource = null;
         }
     }
 
     /**
-     * @return the PageId associated with this page.
+     * @return the before image, copying it out of the region this page was
+     *   decoded from if that was not done yet; call holding oldDataLock
      */
-    public HeapPageId getId() {
-        return this.pid;
+    private byte[] beforeImageData() {
+        if (oldSource != null) {
+            oldData = new byte[oldSource.capacity()];
+            ByteBuffer src = oldSource.duplicate();
+            src.clear();
+            src.get(oldData);
+            oldSource = null;
+        }
+        return oldData;
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the PageId associated with this page.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
-        return t;
+    public HeapPageId getId() {
+        return this.pid;
     }
 
     /**
@@ -158,65 +205,30 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
+    public synchronized byte[] getPageData() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = image.duplicate();
+        src.clear();
+        src.get(data);
+        return data;
+    }
 
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * @return the image of this page, made private first if it is still
+     *   shared with the source the page was decoded from; call holding
+     *   the page's monitor
+     */
+    private ByteBuffer writableImage() {
+        if (imageShared) {
+            // the source is the before image until it is copied out
+            synchronized(oldDataLock)
+            {
+                beforeImageData();
             }
+            image = ByteBuffer.wrap(getPageData());
+            imageShared = false;
         }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return image;
     }
 
     /**
@@ -240,24 +252,73 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException 
+    public synchronized void deleteTuple(Tuple t) throws DbException 
     {
         RecordId rid = t.getRecordId();
 
         if (rid == null) 
             throw new DbException("Tuple is not on this page");
-        if (rid.getPageId() != this.pid)
+        if (!this.pid.equals(rid.getPageId()))
             throw new DbException("Tuple is not on this page");
         
         int sid = rid.tupleno();
         if (!isSlotUsed(sid))
             throw new DbException("Tuple slot is already empty");
 
+        // the slot may be written over while the tuples live on
+        t.materialize();
+        if (tuples[sid] != null)
+            tuples[sid].materialize();
         markSlotUsed(sid, false);
+        int offset = header.length + sid * td.getSize();
+        Arrays.fill(writableImage().array(), offset, offset + td.getSize(), (byte) 0);
         tuples[sid] = null;
         t.setRecordId(null);
     }
 
+    /**
+     * Delete the specified tuples from the page in one visit, clearing their
+     * header bits together; when they are all the tuples of the page, the
+     * whole bitmap and all slots are cleared at once.
+     * @throws DbException if a tuple is not on this page, or its slot is
+     *         empty; then no tuple is deleted
+     */
+    public synchronized void deleteTuples(Collection<Tuple> ts) throws DbException {
+        BitSet slots = new BitSet(numSlots);
+        for (Tuple t : ts) {
+            RecordId rid = t.getRecordId();
+            if (rid == null || !this.pid.equals(rid.getPageId()))
+                throw new DbException("Tuple is not on this page");
+            int sid = rid.tupleno();
+            if (!isSlotUsed(sid) || slots.get(sid))
+                throw new DbException("Tuple slot is already empty");
+            slots.set(sid);
+        }
+
+        // the slots may be written over while the tuples live on
+        for (Tuple t : ts)
+            t.materialize();
+        for (int sid = slots.nextSetBit(0); sid >= 0; sid = slots.nextSetBit(sid + 1)) {
+            if (tuples[sid] != null)
+                tuples[sid].materialize();
+            tuples[sid] = null;
+        }
+        byte[] data = writableImage().array();
+        if (slots.cardinality() == numSlots - getNumEmptySlots()) {
+            Arrays.fill(header, (byte) 0);
+            Arrays.fill(data, 0, header.length + numSlots * td.getSize(), (byte) 0);
+        } else {
+            for (int sid = slots.nextSetBit(0); sid >= 0; sid = slots.nextSetBit(sid + 1)) {
+                header[sid / 8] &= (byte) ~(1 << (sid % 8));
+                int offset = header.length + sid * td.getSize();
+                Arrays.fill(data, offset, offset + td.getSize(), (byte) 0);
+            }
+            System.arraycopy(header, 0, data, 0, header.length);
+        }
+        for (Tuple t : ts)
+            t.setRecordId(null);
+    }
+
     /**
      * Adds the specified tuple to the page;  the tuple should be updated to reflect
      *  that it is now stored on this page.
@@ -265,16 +326,18 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         //if (t.getTupleDesc() != this.td)
         //    throw new DbException("Mismatched tupleDesc");
         if (getNumEmptySlots() == 0)
             throw new DbException("No empty Slots in page");
 
+        byte[] bytes = encode(t);
         int sid = 0;
         while (isSlotUsed(sid) == true)
             sid++;
 
+        System.arraycopy(bytes, 0, writableImage().array(), header.length + sid * td.getSize(), bytes.length);
         markSlotUsed(sid, true);
         RecordId rid = new RecordId(this.pid, sid);
         t.setRecordId(rid);
@@ -282,11 +345,39 @@ public class HeapPage implements Page {
         tuples[sid] = t;
     }
 
+    /**
+     * @return the serialized fields of t, as they are stored in a slot
+     * @throws DbException if t does not fit a slot of this page
+     */
+    private byte[] encode(Tuple t) throws DbException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j=0; j<td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        if (baos.size() != td.getSize())
+            throw new DbException("Tuple does not match the schema of the page");
+        return baos.toByteArray();
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
      */
-    public void markDirty(boolean dirty, TransactionId tid) {
+    public synchronized void markDirty(boolean dirty, TransactionId tid) {
+        if (dirty) {
+            // the page will be written over the region it was decoded from
+            synchronized(oldDataLock)
+            {
+                beforeImageData();
+            }
+        }
         this.dirty = dirty;
         this.dirty_tid = tid;
     }
@@ -294,12 +385,20 @@ public class HeapPage implements Page {
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
-    public TransactionId isDirty() {
+    public synchronized TransactionId isDirty() {
         if (this.dirty)
             return this.dirty_tid;
         return null;
     }
 
+    /**
+     * Returns the number of empty slots on this page; the free space of a
+     * HeapPage is counted in slots.
+     */
+    public int getFreeSpace() {
+        return getNumEmptySlots();
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -340,6 +439,7 @@ public class HeapPage implements Page {
             header[byteNum] = (byte) (header[byteNum] | mask);
         else
             header[byteNum] = (byte) (header[byteNum] & ~mask); 
+        writableImage().put(byteNum, header[byteNum]);
     }
 
     /**
@@ -347,13 +447,85 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        List<Tuple> usedTuples = new ArrayList<Tuple>();
-        for (int i = 0; i < this.tuples.length; i++) {
-            if (isSlotUsed(i)) {
-                usedTuples.add(this.tuples[i]);
+        return new TupleCursor().reset(this);
+    }
+
+    /**
+     * TupleCursor iterates over the tuples of a page by walking its header
+     * a byte at a time, skipping empty bytes, without collecting the tuples
+     * first. A cursor can be reset to another page and reused, so a scan
+     * needs one cursor rather than a collection per page.
+     * <p>
+     * The cursor sees the slots that were used when it was reset; tuples
+     * deleted since are skipped, tuples inserted since are not returned
+     * unless they took the slot of a tuple deleted since.
+     */
+    public static class TupleCursor implements Iterator<Tuple> {
+
+        public TupleCursor() {
+            this.page = null;
+            this.header = new byte[0];
+            this.byteNum = 0;
+            this.bits = 0;
+            this.next = null;
+        }
+
+        /**
+         * Starts iterating over the tuples of page.
+         * @return this cursor
+         */
+        public TupleCursor reset(HeapPage page) {
+            this.page = page;
+            if (this.header.length != page.header.length) {
+                this.header = new byte[page.header.length];
+            }
+            synchronized (page) {
+                System.arraycopy(page.header, 0, this.header, 0, this.header.length);
+            }
+            this.byteNum = -1;
+            this.bits = 0;
+            this.next = null;
+            return this;
+        }
+
+        public boolean hasNext() {
+            while (this.next == null) {
+                while (this.bits == 0) {
+                    if (++this.byteNum >= this.header.length) {
+                        return false;
+                    }
+                    this.bits = this.header[this.byteNum] & 0xff;
+                }
+                int slot = this.byteNum * 8 + Integer.numberOfTrailingZeros(this.bits);
+                this.bits &= this.bits - 1;
+                if (slot < this.page.numSlots) {
+                    // null if deleted since the reset
+                    this.next = this.page.tuples[slot];
+                }
+            }
+            return true;
+        }
+
+        public Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            Tuple t = this.next;
+            this.next = null;
+            return t;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
-        return usedTuples.listIterator();
+
+        private HeapPage page;
+        // copy of the header of the page as of the reset
+        private byte[] header;
+        private int byteNum;
+        // slots of header[byteNum] not visited yet
+        private int bits;
+        private Tuple next;
     }
 
 }
\ No newline at end of file
@@ -1,13 +1,30 @@
 package simpledb;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Inserts tuples read from the child operator into the tableid specified in the
  * constructor
+ * <p>
+ * The child is read BATCH_SIZE tuples at a time, and each batch is handed
+ * to the buffer pool at once, so the table fills a page at a time and
+ * dirties each page once per batch.
+ *
+ * @see BufferPool#insertTuples
  */
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Number of tuples inserted as one batch. */
+    public static final int BATCH_SIZE = 4096;
+
+    TransactionId tid;
+    DbIterator iter;
+    int tableId;
+
     /**
      * Constructor.
      * 
@@ -23,24 +40,35 @@ public class Insert extends Operator {
      */
     public Insert(TransactionId t,DbIterator child, int tableid)
             throws DbException {
-        // some code goes here
+        if (!child.getTupleDesc().equals(Database.getCatalog().getTupleDesc(tableid))) {
+            throw new DbException("TupleDesc of child differs from table " + tableid);
+        }
+        this.tid = t;
+        this.iter = child;
+        this.tableId = tableid;
+        this.done = false;
     }
 
     public TupleDesc getTupleDesc() {
-        // some code goes here
-        return null;
+        String [] fieldName = {"Inserted Tuples"};
+        Type [] fieldType = {Type.INT_TYPE};
+
+        return new TupleDesc(fieldType, fieldName);
     }
 
     public void open() throws DbException, TransactionAbortedException {
-        // some code goes here
+        this.iter.open();
+        super.open();
     }
 
     public void close() {
-        // some code goes here
+        this.iter.close();
+        super.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        // some code goes here
+        this.iter.rewind();
+        this.done = false;
     }
 
     /**
@@ -57,18 +85,49 @@ public class Insert extends Operator {
      * @see BufferPool#insertTuple
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        // some code goes here
-        return null;
+        if (this.done) {
+            return null;
+        }
+        this.done = true;
+
+        TupleDesc td = Database.getCatalog().getTupleDesc(this.tableId);
+        List<Tuple> batch = new ArrayList<Tuple>(BATCH_SIZE);
+        int count = 0;
+        while (this.iter.hasNext()) {
+            // a copy, so the child's tuple keeps its RecordId
+            Tuple t = this.iter.next();
+            Tuple copy = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++) {
+                copy.setField(i, t.getField(i));
+            }
+            batch.add(copy);
+            if (batch.size() == BATCH_SIZE || !this.iter.hasNext()) {
+                try {
+                    Database.getBufferPool().insertTuples(this.tid, this.tableId, batch);
+                } catch (IOException e) {
+                    throw new DbException("insert failed: " + e.getMessage());
+                }
+                count += batch.size();
+                batch.clear();
+            }
+        }
+
+        Tuple result = new Tuple(getTupleDesc());
+        result.setField(0, new IntField(count));
+        return result;
     }
 
     @Override
     public DbIterator[] getChildren() {
-        // some code goes here
-        return null;
+        DbIterator child[] = new DbIterator[1];
+        child[0] = this.iter;
+        return child;
     }
 
     @Override
     public void setChildren(DbIterator[] children) {
-        // some code goes here
+        this.iter = children[0];
     }
+
+    private boolean done;
 }
@@ -0,0 +1,37 @@
+package simpledb;
+
+import java.util.concurrent.FutureTask;
+
+/**
+ * IoFuture is the future of a page read or write issued asynchronously. It
+ * is completed by the completion handler of the I/O instead of by running a
+ * task, so no thread waits for the I/O unless it asks for the result.
+ *
+ * @see HeapFile#readPagesAsync
+ * @see HeapFile#writePagesAsync
+ */
+class IoFuture<V> extends FutureTask<V> {
+
+    IoFuture() {
+        super(NOTHING, null);
+    }
+
+    /** Does nothing: the future is completed by its I/O. */
+    public void run() {
+    }
+
+    /** Completes the future with the result of its I/O. */
+    void complete(V result) {
+        set(result);
+    }
+
+    /** Completes the future with the failure of its I/O. */
+    void fail(Throwable failure) {
+        setException(failure);
+    }
+
+    private static final Runnable NOTHING = new Runnable() {
+        public void run() {
+        }
+    };
+}
@@ -0,0 +1,278 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LockManager grants page-level shared (READ_ONLY) and exclusive (READ_WRITE)
+ * locks to transactions on behalf of the BufferPool.
+ * <p>
+ * The lock table is striped: each page hashes to one of a fixed number of
+ * stripes, and the stripe's monitor guards the lock state of its pages and is
+ * what blocked requesters wait on. A transaction holding the only shared lock
+ * on a page may upgrade it to an exclusive lock.
+ * <p>
+ * Deadlocks are detected, not timed out. A blocked requester records
+ * wait-for edges to the transactions in its way and searches the wait-for
+ * graph for a cycle. Since a cycle can only be closed by a new edge, the
+ * requester that closes it is the victim: its request fails with a
+ * TransactionAbortedException and the other transactions keep waiting.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Number of stripes of the lock table. */
+    private static final int STRIPES = 64;
+
+    /**
+     * Lock state of one page. Guarded by the monitor of its stripe. It stays
+     * in the lock table while any transaction holds or waits for it.
+     */
+    private static class PageLock {
+        final Set<TransactionId> shared = new HashSet<TransactionId>();
+        TransactionId exclusive = null;
+        int waiters = 0;
+
+        boolean isFree() {
+            return exclusive == null && shared.isEmpty();
+        }
+
+        boolean isUnused() {
+            return isFree() && waiters == 0;
+        }
+
+        boolean isExclusiveHolder(TransactionId tid) {
+            // TransactionId.equals does not accept null
+            return exclusive != null && exclusive.equals(tid);
+        }
+    }
+
+    public LockManager() {
+        this.stripes = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            this.stripes[i] = new Object();
+        }
+        this.locks = new ConcurrentHashMap<PageId, PageLock>();
+        this.held = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+        this.waitsFor = new HashMap<TransactionId, Set<TransactionId>>();
+    }
+
+    /**
+     * Acquires a lock on pid for tid, blocking while conflicting locks are
+     * held by other transactions. Returns immediately if tid already holds a
+     * lock at least as strong as the one requested.
+     *
+     * @throws TransactionAbortedException if waiting for the lock would
+     *   deadlock
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        Object stripe = stripeOf(pid);
+        synchronized (stripe) {
+            try {
+                while (true) {
+                    // the lock of the page, as of now: the one we waited on
+                    // may have been dropped and replaced meanwhile
+                    PageLock lock = lockOf(pid);
+                    Set<TransactionId> blockers = blockers(lock, tid, exclusive);
+                    if (blockers.isEmpty()) {
+                        grant(lock, tid, pid, exclusive);
+                        return;
+                    }
+                    waitFor(tid, blockers);
+                    lock.waiters++;
+                    try {
+                        stripe.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new TransactionAbortedException();
+                    } finally {
+                        lock.waiters--;
+                    }
+                }
+            } finally {
+                stopWaiting(tid);
+                // only a lock nobody holds or waits for is dropped, so a
+                // failed requester cannot drop a lock another one installed
+                PageLock lock = this.locks.get(pid);
+                if (lock != null && lock.isUnused()) {
+                    this.locks.remove(pid, lock);
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases whatever lock tid holds on pid.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Object stripe = stripeOf(pid);
+        synchronized (stripe) {
+            PageLock lock = this.locks.get(pid);
+            if (lock != null) {
+                if (lock.isExclusiveHolder(tid)) {
+                    lock.exclusive = null;
+                }
+                lock.shared.remove(tid);
+                if (lock.isUnused()) {
+                    this.locks.remove(pid, lock);
+                }
+            }
+            Set<PageId> pages = this.held.get(tid);
+            if (pages != null) {
+                pages.remove(pid);
+            }
+            stripe.notifyAll();
+        }
+    }
+
+    /**
+     * Releases every lock held by tid.
+     */
+    public void releaseAll(TransactionId tid) {
+        Set<PageId> pages = this.held.remove(tid);
+        if (pages != null) {
+            for (PageId pid : pages) {
+                release(tid, pid);
+            }
+        }
+    }
+
+    /** @return true if tid holds a shared or exclusive lock on pid */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        synchronized (stripeOf(pid)) {
+            PageLock lock = this.locks.get(pid);
+            return lock != null && (lock.isExclusiveHolder(tid) || lock.shared.contains(tid));
+        }
+    }
+
+    /** @return true if tid holds an exclusive lock on pid */
+    public boolean holdsExclusiveLock(TransactionId tid, PageId pid) {
+        synchronized (stripeOf(pid)) {
+            PageLock lock = this.locks.get(pid);
+            return lock != null && lock.isExclusiveHolder(tid);
+        }
+    }
+
+    /** @return true if tid holds any lock, i.e. has not completed yet */
+    public boolean isActive(TransactionId tid) {
+        return this.held.containsKey(tid);
+    }
+
+    /** @return a snapshot of the pages tid currently holds locks on */
+    public Set<PageId> lockedPages(TransactionId tid) {
+        Set<PageId> pages = this.held.get(tid);
+        if (pages == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<PageId>(pages);
+    }
+
+    /**
+     * @return the lock of pid in the lock table, installing a free one if
+     *   there is none. Must be called with the stripe of pid locked.
+     */
+    private PageLock lockOf(PageId pid) {
+        PageLock lock = this.locks.get(pid);
+        if (lock == null) {
+            lock = new PageLock();
+            this.locks.put(pid, lock);
+        }
+        return lock;
+    }
+
+    private Object stripeOf(PageId pid) {
+        return this.stripes[(pid.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /** @return the transactions whose locks keep tid from being granted */
+    private static Set<TransactionId> blockers(PageLock lock, TransactionId tid, boolean exclusive) {
+        Set<TransactionId> blockers = new HashSet<TransactionId>();
+        if (lock.exclusive != null && !lock.exclusive.equals(tid)) {
+            blockers.add(lock.exclusive);
+        }
+        if (exclusive) {
+            for (TransactionId other : lock.shared) {
+                if (!other.equals(tid)) {
+                    blockers.add(other);
+                }
+            }
+        }
+        return blockers;
+    }
+
+    private void grant(PageLock lock, TransactionId tid, PageId pid, boolean exclusive) {
+        if (exclusive) {
+            // also covers upgrading our own shared lock
+            lock.shared.remove(tid);
+            lock.exclusive = tid;
+        } else if (!lock.isExclusiveHolder(tid)) {
+            lock.shared.add(tid);
+        }
+        Set<PageId> pages = this.held.get(tid);
+        if (pages == null) {
+            pages = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+            Set<PageId> raced = this.held.putIfAbsent(tid, pages);
+            if (raced != null) {
+                pages = raced;
+            }
+        }
+        pages.add(pid);
+    }
+
+    /**
+     * Records that tid waits for blockers and checks whether that closes a
+     * cycle in the wait-for graph.
+     *
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    private void waitFor(TransactionId tid, Set<TransactionId> blockers)
+            throws TransactionAbortedException {
+        synchronized (this.waitsFor) {
+            this.waitsFor.put(tid, blockers);
+            if (hasCycle(tid)) {
+                this.waitsFor.remove(tid);
+                throw new TransactionAbortedException();
+            }
+        }
+    }
+
+    private void stopWaiting(TransactionId tid) {
+        synchronized (this.waitsFor) {
+            this.waitsFor.remove(tid);
+        }
+    }
+
+    /**
+     * Depth-first search of the wait-for graph for a path from start back to
+     * itself. Must be called with waitsFor locked.
+     */
+    private boolean hasCycle(TransactionId start) {
+        Deque<TransactionId> stack = new ArrayDeque<TransactionId>();
+        Set<TransactionId> visited = new HashSet<TransactionId>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            Set<TransactionId> next = this.waitsFor.get(stack.pop());
+            if (next == null) {
+                continue;
+            }
+            for (TransactionId t : next) {
+                if (t.equals(start)) {
+                    return true;
+                }
+                if (visited.add(t)) {
+                    stack.push(t);
+                }
+            }
+        }
+        return false;
+    }
+
+    private final Object[] stripes;
+    private final ConcurrentHashMap<PageId, PageLock> locks;
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> held;
+    // the wait-for graph, guarded by its own monitor
+    private final HashMap<TransactionId, Set<TransactionId>> waitsFor;
+}
@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRU-K eviction (O'Neil, O'Neil and Weikum). Each page remembers the logical
+ * times of its last K references, and the victim is the evictable page whose
+ * K-th most recent reference is oldest. Pages referenced fewer than K times
+ * have an infinite backward K-distance and go first, oldest last reference
+ * first, which keeps one-off scan pages from pushing out the hot set.
+ * <p>
+ * The reference history of evicted pages is retained for a while (bounded by
+ * the pool capacity), so a page that comes back soon is ranked by its full
+ * history rather than as a newcomer.
+ *
+ * @Threadsafe
+ */
+public class LruKEvictionPolicy implements EvictionPolicy {
+
+    /** Default number of references tracked per page. */
+    public static final int DEFAULT_K = 2;
+
+    public LruKEvictionPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the number of most recent references kept for each page
+     */
+    public LruKEvictionPolicy(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+        this.clock = 0;
+        this.resident = new HashMap<PageId, long[]>();
+        this.retained = new LinkedHashMap<PageId, long[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<PageId, long[]> eldest) {
+                return size() > retainedLimit;
+            }
+        };
+        this.retainedLimit = BufferPool.DEFAULT_PAGES;
+    }
+
+    public synchronized void setCapacity(int numPages) {
+        this.retainedLimit = Math.max(numPages, 1);
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        long[] history = this.resident.get(pid);
+        if (history == null) {
+            history = this.retained.remove(pid);
+            if (history == null) {
+                history = new long[this.k];
+            }
+            this.resident.put(pid, history);
+        }
+        reference(history);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        long[] history = this.resident.get(pid);
+        if (history != null) {
+            reference(history);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        long[] history = this.resident.remove(pid);
+        if (history != null) {
+            this.retained.put(pid, history);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Candidates candidates) {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+        for (Map.Entry<PageId, long[]> e : this.resident.entrySet()) {
+            long[] history = e.getValue();
+            // history[0] is the most recent reference, history[k-1] the K-th;
+            // 0 means "not referenced that many times" i.e. infinite distance
+            long kth = history[this.k - 1];
+            long last = history[0];
+            if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+                if (candidates.isEvictable(e.getKey())) {
+                    victim = e.getKey();
+                    victimKth = kth;
+                    victimLast = last;
+                }
+            }
+        }
+        return victim;
+    }
+
+    /** Shift the reference history and record a new reference now. */
+    private void reference(long[] history) {
+        System.arraycopy(history, 0, history, 1, this.k - 1);
+        history[0] = ++this.clock;
+    }
+
+    private final int k;
+    private long clock;
+    private final HashMap<PageId, long[]> resident;
+    private final LinkedHashMap<PageId, long[]> retained;
+    private int retainedLimit;
+}
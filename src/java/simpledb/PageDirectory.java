@@ -0,0 +1,148 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * PageDirectory records where the compressed image of each page of a
+ * compressed HeapFile is in its data file. Compressed images vary in size,
+ * so page n is no longer at n * page size. The directory is kept in a
+ * sidecar file next to the table, with the extension <tt>.pdir</tt>, as one
+ * entry of ENTRY_SIZE bytes per page: the offset of the image, its length,
+ * and the room set aside for it.
+ * <p>
+ * An image that outgrows its room is written at the end of the data file;
+ * the room it leaves behind is not reused. An entry is written through as
+ * soon as the image it points to is written. A page with an image of length
+ * 0 is all zeroes.
+ *
+ * @see HeapFile
+ */
+public class PageDirectory {
+
+    /** Size of the entry of one page in the sidecar file. */
+    public static final int ENTRY_SIZE = 16;
+
+    /**
+     * Opens the directory in file, creating it if it does not exist.
+     */
+    public PageDirectory(File file) throws IOException {
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        int n = (int) (this.channel.size() / ENTRY_SIZE);
+        this.offsets = new long[Math.max(16, n)];
+        this.lengths = new int[this.offsets.length];
+        this.capacities = new int[this.offsets.length];
+        this.numPages = n;
+        this.end = 0;
+        ByteBuffer entries = ByteBuffer.allocate(n * ENTRY_SIZE);
+        while (entries.hasRemaining()) {
+            if (this.channel.read(entries, entries.position()) < 0) {
+                throw new EOFException(file.getPath());
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            this.offsets[i] = entries.getLong(i * ENTRY_SIZE);
+            this.lengths[i] = entries.getInt(i * ENTRY_SIZE + 8);
+            this.capacities[i] = entries.getInt(i * ENTRY_SIZE + 12);
+            this.end = Math.max(this.end, this.offsets[i] + this.capacities[i]);
+        }
+    }
+
+    /** @return the number of pages in the directory */
+    public synchronized int numPages() {
+        return this.numPages;
+    }
+
+    /** @return the offset of the image of a page in the data file */
+    public synchronized long getOffset(int pageNo) {
+        return this.offsets[check(pageNo)];
+    }
+
+    /** @return the length of the image of a page, 0 if it is all zeroes */
+    public synchronized int getLength(int pageNo) {
+        return this.lengths[check(pageNo)];
+    }
+
+    /** @return the room set aside for the image of a page */
+    public synchronized int getCapacity(int pageNo) {
+        return pageNo < this.numPages ? this.capacities[pageNo] : 0;
+    }
+
+    /**
+     * Sets aside capacity bytes at the end of the data file.
+     * @return the offset of the room
+     */
+    public synchronized long reserve(int capacity) {
+        long offset = this.end;
+        this.end += capacity;
+        return offset;
+    }
+
+    /**
+     * Records where the image of a page was written and writes the entry
+     * through. Pages skipped over by a page past the end are all zeroes.
+     */
+    public synchronized void put(int pageNo, long offset, int length, int capacity) throws IOException {
+        if (pageNo >= this.offsets.length) {
+            int size = Math.max(pageNo + 1, this.offsets.length * 2);
+            this.offsets = Arrays.copyOf(this.offsets, size);
+            this.lengths = Arrays.copyOf(this.lengths, size);
+            this.capacities = Arrays.copyOf(this.capacities, size);
+        }
+        this.offsets[pageNo] = offset;
+        this.lengths[pageNo] = length;
+        this.capacities[pageNo] = capacity;
+        this.end = Math.max(this.end, offset + capacity);
+        int first = Math.min(pageNo, this.numPages);
+        this.numPages = Math.max(this.numPages, pageNo + 1);
+
+        ByteBuffer entries = ByteBuffer.allocate((pageNo + 1 - first) * ENTRY_SIZE);
+        for (int i = first; i <= pageNo; i++) {
+            entries.putLong(this.offsets[i]).putInt(this.lengths[i]).putInt(this.capacities[i]);
+        }
+        entries.flip();
+        long position = (long) first * ENTRY_SIZE;
+        while (entries.hasRemaining()) {
+            this.channel.write(entries, position + entries.position());
+        }
+    }
+
+    /**
+     * Drops the entries of the pages from numPages on.
+     * @return the end of the room of the pages left, where the data file
+     *   can be cut
+     */
+    public synchronized long truncate(int numPages) throws IOException {
+        if (numPages < this.numPages) {
+            this.numPages = numPages;
+            this.channel.truncate((long) numPages * ENTRY_SIZE);
+        }
+        this.end = 0;
+        for (int i = 0; i < this.numPages; i++) {
+            this.end = Math.max(this.end, this.offsets[i] + this.capacities[i]);
+        }
+        return this.end;
+    }
+
+    /** Closes the sidecar file. */
+    public synchronized void close() throws IOException {
+        this.channel.close();
+    }
+
+    private int check(int pageNo) {
+        if (pageNo < 0 || pageNo >= this.numPages) {
+            throw new IllegalArgumentException("no page " + pageNo + " in the directory");
+        }
+        return pageNo;
+    }
+
+    private final FileChannel channel;
+    private long[] offsets;
+    private int[] lengths;
+    private int[] capacities;
+    private int numPages;
+    // end of the last image room in the data file
+    private long end;
+}
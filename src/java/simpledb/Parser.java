@@ -581,7 +581,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "stats" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -675,12 +675,19 @@ public class Parser {
                         break;
                     }
 
-                    long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
-                    long time = System.currentTimeMillis() - startTime;
-                    System.out.printf("----------------\n%.2f seconds\n\n",
-                            ((double) time / 1000.0));
+                    if (cmd.equalsIgnoreCase("stats;")) {
+                        // buffer pool statistics rather than a statement
+                        System.out.println(Database.getBufferPool().getStats());
+                    } else if (cmd.equalsIgnoreCase("stats reset;")) {
+                        Database.getBufferPool().getStats().reset();
+                    } else {
+                        long startTime = System.currentTimeMillis();
+                        processNextStatement(new ByteArrayInputStream(
+                                statementBytes));
+                        long time = System.currentTimeMillis() - startTime;
+                        System.out.printf("----------------\n%.2f seconds\n\n",
+                                ((double) time / 1000.0));
+                    }
 
                     // Grab the remainder of the line
                     line = line.substring(split + 1);
@@ -0,0 +1,375 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * PaxPage is a page format of HeapFile for analytical tables. It has the
+ * fixed size slots of a HeapPage, but stores the values of each column
+ * together in a minipage of their own rather than the fields of each tuple
+ * together. The layout of a page of n slots is:
+ * <pre>
+ *     header   a bit per slot, set if the slot is used, as on a HeapPage
+ *     stats    per column an int minimum and an int maximum
+ *     column 0 n values of field 0
+ *     column 1 n values of field 1
+ *     ...
+ * </pre>
+ * where n is the largest number of slots for which all of this fits on a
+ * page. Tuples of the page are lazy and decode a field from its minipage
+ * only when it is asked for, so a scan that reads two columns of twenty
+ * touches the bytes of those two columns only.
+ * <p>
+ * The stats of an int column bound the values of the tuples on the page:
+ * they are widened on insert but not narrowed on delete. A scan can skip a
+ * page whose bounds rule out its predicate, see {@link #mayMatch}. The
+ * stats of a string column are not kept.
+ *
+ * @see HeapFile
+ * @see HeapPage
+ */
+public class PaxPage implements TuplePage {
+
+    /** Size of the stats of one column. */
+    public static final int STATS_SIZE = 8;
+
+    /**
+     * Create a PaxPage from a page image read from disk. An image of all
+     * zeroes is an empty page.
+     *
+     * @see HeapPage#createEmptyPageData
+     */
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
+
+    /**
+     * Create a PaxPage of a table that need not be in the catalog.
+     */
+    PaxPage(HeapPageId id, TupleDesc td, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = td;
+        int pageSize = BufferPool.getPageSize();
+        if (data.length < pageSize) {
+            throw new IOException("short page image of " + data.length + " bytes for " + id);
+        }
+        this.numSlots = numSlots(td);
+        this.headerSize = (this.numSlots + 7) / 8;
+        this.columns = new int[td.numFields()];
+        for (int j = 0; j < this.columns.length; j++) {
+            this.columns[j] = this.headerSize + STATS_SIZE * td.numFields() + this.numSlots * td.getOffset(j);
+        }
+        this.data = Arrays.copyOf(data, pageSize);
+        this.image = ByteBuffer.wrap(this.data);
+
+        this.tuples = new Tuple[this.numSlots];
+        for (int i = 0; i < this.numSlots; i++) {
+            if (isSlotUsed(i)) {
+                Tuple t = new Tuple(td, this.image, this.columns, i);
+                t.setRecordId(new RecordId(id, i));
+                this.tuples[i] = t;
+                this.numTuples++;
+            }
+        }
+
+        synchronized(oldDataLock)
+        {
+            oldData = data;
+        }
+    }
+
+    /**
+     * @return the number of slots of a PaxPage of tuples of td
+     */
+    static int numSlots(TupleDesc td) {
+        int room = BufferPool.getPageSize() - STATS_SIZE * td.numFields();
+        return (room * 8) / (td.getSize() * 8 + 1);
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return this.pid;
+    }
+
+    /**
+     * @return the number of empty slots on this page
+     */
+    public synchronized int getFreeSpace() {
+        return this.numSlots - this.numTuples;
+    }
+
+    /**
+     * @return the number of tuples on this page
+     */
+    public synchronized int getNumTuples() {
+        return this.numTuples;
+    }
+
+    /**
+     * @return true if slot i of this page is used
+     */
+    public synchronized boolean isSlotUsed(int i) {
+        return i >= 0 && i < this.numSlots && (this.data[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    /**
+     * @return the smallest value of int field j of the tuples on this page,
+     *   or a smaller one
+     * @throws NoSuchElementException if the page is empty
+     */
+    public synchronized int getMin(int j) {
+        checkStats(j);
+        return this.image.getInt(this.headerSize + STATS_SIZE * j);
+    }
+
+    /**
+     * @return the largest value of int field j of the tuples on this page,
+     *   or a larger one
+     * @throws NoSuchElementException if the page is empty
+     */
+    public synchronized int getMax(int j) {
+        checkStats(j);
+        return this.image.getInt(this.headerSize + STATS_SIZE * j + 4);
+    }
+
+    private void checkStats(int j) {
+        if (this.td.getFieldType(j) != Type.INT_TYPE) {
+            throw new IllegalArgumentException("no stats are kept for field " + j);
+        }
+        if (this.numTuples == 0) {
+            throw new NoSuchElementException("page " + this.pid + " is empty");
+        }
+    }
+
+    /**
+     * @return false if no tuple on this page can satisfy p, as far as the
+     *   stats of the page tell; true otherwise
+     */
+    public synchronized boolean mayMatch(Predicate p) {
+        if (this.numTuples == 0) {
+            return false;
+        }
+        int j = p.getField();
+        if (this.td.getFieldType(j) != Type.INT_TYPE || !(p.getOperand() instanceof IntField)) {
+            return true;
+        }
+        int v = ((IntField) p.getOperand()).getValue();
+        int min = getMin(j);
+        int max = getMax(j);
+        switch (p.getOp()) {
+        case EQUALS:
+            return min <= v && v <= max;
+        case GREATER_THAN:
+            return max > v;
+        case GREATER_THAN_OR_EQ:
+            return max >= v;
+        case LESS_THAN:
+            return min < v;
+        case LESS_THAN_OR_EQ:
+            return min <= v;
+        case NOT_EQUALS:
+            return min != v || max != v;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Adds the specified tuple to the page, in the first empty slot, and
+     * widens the stats of the page to its values.
+     * @throws DbException if the page is full or the tuple does not match
+     *         the schema of the page
+     */
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (this.numTuples == this.numSlots)
+            throw new DbException("No empty Slots in page");
+        byte[][] values = encode(t);
+        int sid = 0;
+        while (isSlotUsed(sid))
+            sid++;
+
+        for (int j = 0; j < values.length; j++) {
+            System.arraycopy(values[j], 0, this.data, this.columns[j] + sid * values[j].length, values[j].length);
+            if (this.td.getFieldType(j) == Type.INT_TYPE) {
+                int v = ((IntField) t.getField(j)).getValue();
+                int stats = this.headerSize + STATS_SIZE * j;
+                if (this.numTuples == 0 || v < this.image.getInt(stats))
+                    this.image.putInt(stats, v);
+                if (this.numTuples == 0 || v > this.image.getInt(stats + 4))
+                    this.image.putInt(stats + 4, v);
+            }
+        }
+        this.data[sid / 8] |= (byte) (1 << (sid % 8));
+        this.numTuples++;
+
+        t.setRecordId(new RecordId(this.pid, sid));
+        this.tuples[sid] = t;
+    }
+
+    /**
+     * @return the serialized fields of t, one array per column
+     * @throws DbException if t does not match the schema of the page
+     */
+    private byte[][] encode(Tuple t) throws DbException {
+        byte[][] values = new byte[this.td.numFields()][];
+        for (int j = 0; j < values.length; j++) {
+            Type type = this.td.getFieldType(j);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(type.getLen());
+            try {
+                Field f = t.getField(j);
+                if (f == null || f.getType() != type)
+                    throw new DbException("Tuple does not match the schema of the page");
+                f.serialize(new DataOutputStream(baos));
+            } catch (IOException e) {
+                // this really shouldn't happen
+                e.printStackTrace();
+            }
+            if (baos.size() != type.getLen())
+                throw new DbException("Tuple does not match the schema of the page");
+            values[j] = baos.toByteArray();
+        }
+        return values;
+    }
+
+    /**
+     * Delete the specified tuple from the page; the stats of the page are
+     * left as they are.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !this.pid.equals(rid.getPageId()))
+            throw new DbException("Tuple is not on this page");
+        int sid = rid.tupleno();
+        if (!isSlotUsed(sid))
+            throw new DbException("Tuple slot is already empty");
+
+        // the slot may be written over while the tuples live on
+        t.materialize();
+        if (this.tuples[sid] != null)
+            this.tuples[sid].materialize();
+        for (int j = 0; j < this.columns.length; j++) {
+            int len = this.td.getFieldType(j).getLen();
+            Arrays.fill(this.data, this.columns[j] + sid * len, this.columns[j] + (sid + 1) * len, (byte) 0);
+        }
+        this.data[sid / 8] &= (byte) ~(1 << (sid % 8));
+        this.numTuples--;
+        this.tuples[sid] = null;
+        t.setRecordId(null);
+    }
+
+    /**
+     * Delete the specified tuples from the page; when they are all the
+     * tuples of the page, the page and its stats are cleared at once.
+     * @throws DbException if a tuple is not on this page, or its slot is
+     *         empty; then no tuple is deleted
+     */
+    public synchronized void deleteTuples(Collection<Tuple> ts) throws DbException {
+        BitSet slots = new BitSet(this.numSlots);
+        for (Tuple t : ts) {
+            RecordId rid = t.getRecordId();
+            if (rid == null || !this.pid.equals(rid.getPageId()))
+                throw new DbException("Tuple is not on this page");
+            int sid = rid.tupleno();
+            if (!isSlotUsed(sid) || slots.get(sid))
+                throw new DbException("Tuple slot is already empty");
+            slots.set(sid);
+        }
+        if (slots.cardinality() < this.numTuples) {
+            for (Tuple t : ts)
+                deleteTuple(t);
+            return;
+        }
+        // the page may be written over while the tuples live on
+        for (Tuple t : ts)
+            t.materialize();
+        for (int i = 0; i < this.numSlots; i++) {
+            if (this.tuples[i] != null)
+                this.tuples[i].materialize();
+        }
+        Arrays.fill(this.data, (byte) 0);
+        Arrays.fill(this.tuples, null);
+        this.numTuples = 0;
+        for (Tuple t : ts)
+            t.setRecordId(null);
+    }
+
+    /**
+     * @return an iterator over the tuples of this page as of the call
+     */
+    public synchronized Iterator<Tuple> iterator() {
+        List<Tuple> used = new ArrayList<Tuple>(this.numTuples);
+        for (int i = 0; i < this.numSlots; i++) {
+            if (this.tuples[i] != null)
+                used.add(this.tuples[i]);
+        }
+        return Collections.unmodifiableList(used).iterator();
+    }
+
+    /**
+     * @return a copy of the image of this page
+     */
+    public synchronized byte[] getPageData() {
+        return this.data.clone();
+    }
+
+    public synchronized void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        this.dirty_tid = tid;
+    }
+
+    public synchronized TransactionId isDirty() {
+        if (this.dirty)
+            return this.dirty_tid;
+        return null;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public PaxPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized(oldDataLock)
+            {
+                oldDataRef = oldData;
+            }
+            return new PaxPage(pid, td, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        // copy before taking oldDataLock: getPageData latches the page
+        byte[] data = getPageData();
+        synchronized(oldDataLock)
+        {
+            oldData = data;
+        }
+    }
+
+    private final HeapPageId pid;
+    private final TupleDesc td;
+    private final int numSlots;
+    private final int headerSize;
+    // offset of the minipage of each column
+    private final int[] columns;
+    // the authoritative image of the page, and a view of it
+    private final byte[] data;
+    private final ByteBuffer image;
+    private final Tuple[] tuples;
+    private int numTuples;
+
+    private boolean dirty;
+    private TransactionId dirty_tid;
+
+    private byte[] oldData;
+    private final Object oldDataLock = new Object();
+}
@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PinTable keeps the pin counts of the frames of a BufferPool. A pinned
+ * frame is in use by an operator and must not be evicted. Pins are counted
+ * per transaction as well as per page, so the pins a transaction forgot to
+ * release can be dropped, and reported, when it completes.
+ *
+ * @Threadsafe
+ */
+public class PinTable {
+
+    public PinTable() {
+        this.counts = new ConcurrentHashMap<PageId, AtomicInteger>();
+        this.byTransaction = new ConcurrentHashMap<TransactionId, Map<PageId, Integer>>();
+    }
+
+    /** Adds one pin of tid on pid. */
+    public void pin(TransactionId tid, PageId pid) {
+        Map<PageId, Integer> pins = this.byTransaction.get(tid);
+        if (pins == null) {
+            pins = new HashMap<PageId, Integer>();
+            Map<PageId, Integer> raced = this.byTransaction.putIfAbsent(tid, pins);
+            if (raced != null) {
+                pins = raced;
+            }
+        }
+        synchronized (pins) {
+            Integer n = pins.get(pid);
+            pins.put(pid, n == null ? 1 : n + 1);
+        }
+        while (true) {
+            AtomicInteger count = this.counts.get(pid);
+            if (count == null) {
+                count = new AtomicInteger();
+                AtomicInteger raced = this.counts.putIfAbsent(pid, count);
+                if (raced != null) {
+                    count = raced;
+                }
+            }
+            int n = count.get();
+            if (n < 0) {
+                // retired by drop, help remove it and start over
+                this.counts.remove(pid, count);
+            } else if (count.compareAndSet(n, n + 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes one pin of tid on pid.
+     *
+     * @return false if tid held no pin on pid
+     */
+    public boolean unpin(TransactionId tid, PageId pid) {
+        Map<PageId, Integer> pins = this.byTransaction.get(tid);
+        if (pins == null) {
+            return false;
+        }
+        synchronized (pins) {
+            Integer n = pins.get(pid);
+            if (n == null) {
+                return false;
+            }
+            if (n == 1) {
+                pins.remove(pid);
+            } else {
+                pins.put(pid, n - 1);
+            }
+        }
+        drop(pid, 1);
+        return true;
+    }
+
+    /**
+     * Removes every pin tid still holds.
+     *
+     * @return the pins removed, by page; empty if tid released all of them
+     */
+    public Map<PageId, Integer> unpinAll(TransactionId tid) {
+        Map<PageId, Integer> pins = this.byTransaction.remove(tid);
+        if (pins == null) {
+            return Collections.emptyMap();
+        }
+        Map<PageId, Integer> leaked;
+        synchronized (pins) {
+            leaked = new HashMap<PageId, Integer>(pins);
+        }
+        for (Map.Entry<PageId, Integer> e : leaked.entrySet()) {
+            drop(e.getKey(), e.getValue());
+        }
+        return leaked;
+    }
+
+    /** @return true if any transaction holds a pin on pid */
+    public boolean isPinned(PageId pid) {
+        AtomicInteger count = this.counts.get(pid);
+        return count != null && count.get() > 0;
+    }
+
+    /** @return the number of pins held on pid */
+    public int pinCount(PageId pid) {
+        AtomicInteger count = this.counts.get(pid);
+        return count == null ? 0 : Math.max(0, count.get());
+    }
+
+    private void drop(PageId pid, int n) {
+        AtomicInteger count = this.counts.get(pid);
+        // a counter at zero is retired (set to -1) before it is removed, so
+        // a concurrent pin never increments a counter that is going away
+        if (count != null && count.addAndGet(-n) == 0 && count.compareAndSet(0, -1)) {
+            this.counts.remove(pid, count);
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, AtomicInteger> counts;
+    private final ConcurrentHashMap<TransactionId, Map<PageId, Integer>> byTransaction;
+}
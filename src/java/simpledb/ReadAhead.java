@@ -0,0 +1,118 @@
+package simpledb;
+
+/**
+ * ReadAhead watches the pages a scan visits and, once the scan is sequential,
+ * keeps a window of the following pages being read into the BufferPool in the
+ * background, so the scan rarely waits on a synchronous read.
+ * <p>
+ * The window adapts to how fast the scan consumes pages. When the scan
+ * reaches a page whose read is still in flight, it is outrunning the disk
+ * and the window doubles to put more reads in flight. When a read-ahead page
+ * was evicted before the scan got to it, the window is too large for the
+ * pool and is halved. The window never exceeds a quarter of the pool.
+ * <p>
+ * The window is topped up only once the scan has used half of it, and the
+ * pages then due are read with one vectored read, see
+ * {@link BufferPool#prefetchPages}, rather than a read per page.
+ * <p>
+ * A scan that reads through a {@link ScanRing} reads ahead into its ring
+ * instead, with the window capped at half the ring.
+ * <p>
+ * One ReadAhead belongs to one scan and is not thread safe.
+ *
+ * @see BufferPool#prefetchPages
+ */
+public class ReadAhead {
+
+    /** Window used when a scan is first recognized as sequential. */
+    public static final int MIN_WINDOW = 2;
+
+    /** Upper bound on the window, before capping to the pool size. */
+    public static final int MAX_WINDOW = 64;
+
+    /**
+     * @param tableId the table whose pages are being scanned
+     */
+    public ReadAhead(int tableId) {
+        this(tableId, null);
+    }
+
+    /**
+     * @param tableId the table whose pages are being scanned
+     * @param ring the ring the scan reads through, or null for the shared pool
+     */
+    public ReadAhead(int tableId, ScanRing ring) {
+        this.tableId = tableId;
+        this.ring = ring;
+        reset();
+    }
+
+    /** Forget the access history, e.g. when the scan is rewound. */
+    public void reset() {
+        this.lastPage = -1;
+        this.window = 0;
+        this.issuedUpTo = -1;
+    }
+
+    /** @return the current read-ahead window in pages (0 when not sequential) */
+    public int getWindow() {
+        return this.window;
+    }
+
+    /**
+     * Called by the scan right before it fetches page pgNo.
+     *
+     * @param pgNo the page about to be fetched
+     * @param numPages the number of pages in the file
+     */
+    public void access(int pgNo, int numPages) {
+        BufferPool bufferPool = Database.getBufferPool();
+        int frames = this.ring == null ? bufferPool.getNumPages() / 4 : this.ring.size() / 2;
+        int maxWindow = Math.max(1, Math.min(MAX_WINDOW, frames));
+
+        if (pgNo != this.lastPage + 1) {
+            // a jump: start over and wait for the next sequential step
+            this.lastPage = pgNo;
+            this.window = 0;
+            this.issuedUpTo = pgNo;
+            return;
+        }
+        this.lastPage = pgNo;
+
+        if (this.window == 0) {
+            this.window = MIN_WINDOW;
+        } else if (pgNo <= this.issuedUpTo) {
+            HeapPageId pid = new HeapPageId(this.tableId, pgNo);
+            if (bufferPool.isLoading(pid) || (this.ring != null && this.ring.isLoading(pid))) {
+                // the scan caught up with the disk
+                this.window = this.window * 2;
+            } else if (!bufferPool.isResident(pid) && (this.ring == null || !this.ring.contains(pid))) {
+                // read ahead too far: the page was evicted before we used it
+                this.window = this.window / 2;
+            }
+        }
+        this.window = Math.max(Math.min(this.window, maxWindow), Math.min(MIN_WINDOW, maxWindow));
+
+        // the window is topped up once half of it is used, so its pages are
+        // read in runs of half a window or more, each with one vectored read
+        if (this.issuedUpTo - pgNo > this.window / 2) {
+            return;
+        }
+        int first = Math.max(this.issuedUpTo + 1, pgNo + 1);
+        int last = Math.min(pgNo + this.window, numPages - 1);
+        if (first <= last) {
+            if (this.ring == null) {
+                bufferPool.prefetchPages(this.tableId, first, last - first + 1);
+            } else {
+                bufferPool.prefetchPages(this.tableId, first, last - first + 1, this.ring);
+            }
+        }
+        this.issuedUpTo = Math.max(this.issuedUpTo, last);
+    }
+
+    private final int tableId;
+    private final ScanRing ring;
+    private int lastPage;
+    private int window;
+    private int issuedUpTo;
+}
@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.FutureTask;
+
+/**
+ * ScanRing is a small private set of frames that a large sequential scan
+ * recycles instead of reading its pages into the shared BufferPool. A scan
+ * over a table larger than the pool would otherwise evict every hot page of
+ * the concurrent small queries without ever reusing its own.
+ * <p>
+ * Pages already resident in the shared pool are still served from it; only
+ * misses land in the ring. Each frame remembers the pool's write epoch at the
+ * time its read started, so a frame read before some page was written out is
+ * not trusted (see {@link BufferPool#getPage(TransactionId, PageId,
+ * Permissions, ScanRing)}).
+ * <p>
+ * One ScanRing belongs to one scan and is not thread safe; the reads it
+ * holds complete asynchronously.
+ */
+public class ScanRing {
+
+    /** Number of frames of a ring when none is given. */
+    public static final int DEFAULT_SIZE = 32;
+
+    /** A page read into the ring, or being read. */
+    static class Frame {
+        final FutureTask<Page> load;
+        final long epoch;
+
+        Frame(FutureTask<Page> load, long epoch) {
+            this.load = load;
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * @param size the number of frames to recycle
+     */
+    public ScanRing(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("a scan ring needs at least one frame");
+        }
+        this.size = size;
+        this.frames = new LinkedHashMap<PageId, Frame>();
+    }
+
+    /** @return the number of frames of this ring */
+    public int size() {
+        return this.size;
+    }
+
+    /** @return true if the ring holds pid, read or still being read */
+    public boolean contains(PageId pid) {
+        return this.frames.containsKey(pid);
+    }
+
+    /** @return true if a read of pid into the ring is still in flight */
+    public boolean isLoading(PageId pid) {
+        Frame frame = this.frames.get(pid);
+        return frame != null && !frame.load.isDone();
+    }
+
+    Frame get(PageId pid) {
+        return this.frames.get(pid);
+    }
+
+    /** Puts a frame in the ring, recycling the oldest frame if it is full. */
+    void put(PageId pid, Frame frame) {
+        this.frames.remove(pid);
+        if (this.frames.size() >= this.size) {
+            Iterator<PageId> oldest = this.frames.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        this.frames.put(pid, frame);
+    }
+
+    private final int size;
+    private final LinkedHashMap<PageId, Frame> frames;
+}
@@ -68,6 +68,20 @@ public class SeqScan implements DbIterator {
         // some code goes here
     }
 
+    /**
+     * Lets the scan skip the pages that cannot hold a tuple satisfying p, as
+     * far as their stats tell, see
+     * {@link HeapFile#iterator(TransactionId, Predicate)}. The scan still
+     * returns tuples that do not satisfy p. A {@link Filter} over the scan
+     * calls this before the scan is opened.
+     */
+    public void setFilter(Predicate p) {
+        DbFile file = this.catalog.getDatabaseFile(this.tableId);
+        if (file instanceof HeapFile) {
+            this.dbIterator = ((HeapFile) file).iterator(this.transactionId, p);
+        }
+    }
+
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
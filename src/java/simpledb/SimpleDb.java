@@ -44,7 +44,8 @@ public class SimpleDb {
             }
 
             HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
-                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
+                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator,
+                        Runtime.getRuntime().availableProcessors());
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -0,0 +1,358 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * SlottedPage is a page format of HeapFile that stores every record at its
+ * real length, so strings take the room of their characters rather than
+ * Type.STRING_LEN bytes each. The layout of a page is:
+ * <pre>
+ *     int      number of entries of the slot directory
+ *     int      offset of the first record byte (0 on an empty page)
+ *     slot directory, per slot a 16-bit record offset (0 if the slot is
+ *              empty) and a 16-bit record length
+ *     free space
+ *     records, packed against the end of the page
+ * </pre>
+ * A record holds its fields in order: an int as 4 bytes, a string as a
+ * 16-bit length followed by its bytes.
+ * <p>
+ * Records stay packed: deleting one moves the records in front of it over
+ * its bytes, so the free space of a page is always in one piece. Slots keep
+ * their numbers when records move, so RecordIds stay valid. Pages can be at
+ * most 64KB.
+ *
+ * @see HeapFile
+ * @see HeapPage
+ */
+public class SlottedPage implements TuplePage {
+
+    /** Size of the fixed header at the start of a page. */
+    public static final int HEADER_SIZE = 8;
+    /** Size of one entry of the slot directory. */
+    public static final int SLOT_SIZE = 4;
+
+    /**
+     * Create a SlottedPage from a page image read from disk. An image of all
+     * zeroes is an empty page.
+     *
+     * @see HeapPage#createEmptyPageData
+     */
+    public SlottedPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
+
+    /**
+     * Create a SlottedPage of a table that need not be in the catalog.
+     */
+    SlottedPage(HeapPageId id, TupleDesc td, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = td;
+        int pageSize = BufferPool.getPageSize();
+        if (pageSize > 0x10000) {
+            throw new IOException("slotted pages can be at most 64KB");
+        }
+        if (data.length < pageSize) {
+            throw new IOException("short page image of " + data.length + " bytes for " + id);
+        }
+        this.data = Arrays.copyOf(data, pageSize);
+        this.image = ByteBuffer.wrap(this.data);
+        this.numSlots = this.image.getInt(0);
+        this.dataStart = this.image.getInt(4) == 0 ? pageSize : this.image.getInt(4);
+        if (this.numSlots < 0 || this.dataStart > pageSize
+                || (long) HEADER_SIZE + (long) this.numSlots * SLOT_SIZE > this.dataStart) {
+            throw new IOException("corrupt slotted page " + id);
+        }
+
+        this.tuples = new Tuple[Math.max(this.numSlots, 8)];
+        for (int i = 0; i < this.numSlots; i++) {
+            int offset = recordOffset(i);
+            if (offset != 0) {
+                if (offset < this.dataStart || offset + recordLength(i) > pageSize) {
+                    throw new IOException("corrupt slot " + i + " of slotted page " + id);
+                }
+                this.tuples[i] = readRecord(i, offset);
+            }
+        }
+
+        synchronized(oldDataLock)
+        {
+            oldData = data;
+        }
+    }
+
+    /**
+     * @return the number of bytes a tuple takes on a slotted page, its slot
+     *   directory entry included
+     */
+    public static int spaceFor(TupleDesc td, Tuple t) {
+        return recordSize(td, t) + SLOT_SIZE;
+    }
+
+    private static int recordSize(TupleDesc td, Tuple t) {
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                size += 4;
+            } else {
+                size += 2 + Math.min(((StringField) t.getField(j)).getValue().length(), Type.STRING_LEN);
+            }
+        }
+        return size;
+    }
+
+    private Tuple readRecord(int slot, int offset) throws IOException {
+        Tuple t = new Tuple(td);
+        int pos = offset;
+        for (int j = 0; j < td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            if (type == Type.INT_TYPE) {
+                t.setField(j, new IntField(image.getInt(pos)));
+                pos += 4;
+            } else if (type == Type.STRING_TYPE) {
+                int len = image.getChar(pos);
+                String s = new String(data, pos + 2, len);
+                t.setField(j, new StringField(s, Type.STRING_LEN));
+                pos += 2 + len;
+            } else {
+                throw new IOException("cannot store " + type + " on a slotted page");
+            }
+        }
+        t.setRecordId(new RecordId(pid, slot));
+        return t;
+    }
+
+    private byte[] encode(Tuple t) throws DbException {
+        byte[] record = new byte[recordSize(td, t)];
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                Field f = t.getField(j);
+                if (td.getFieldType(j) == Type.INT_TYPE) {
+                    buf.putInt(((IntField) f).getValue());
+                } else {
+                    String s = ((StringField) f).getValue();
+                    int len = Math.min(s.length(), Type.STRING_LEN);
+                    buf.putChar((char) len);
+                    // one byte per character, like StringField.serialize
+                    for (int i = 0; i < len; i++) {
+                        buf.put((byte) s.charAt(i));
+                    }
+                }
+            }
+        } catch (ClassCastException e) {
+            throw new DbException("Tuple does not match the schema of the page");
+        }
+        return record;
+    }
+
+    private int recordOffset(int slot) {
+        return image.getChar(HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    private int recordLength(int slot) {
+        return image.getChar(HEADER_SIZE + slot * SLOT_SIZE + 2);
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        image.putChar(HEADER_SIZE + slot * SLOT_SIZE, (char) offset);
+        image.putChar(HEADER_SIZE + slot * SLOT_SIZE + 2, (char) length);
+    }
+
+    private void writeHeader() {
+        image.putInt(0, numSlots);
+        image.putInt(4, dataStart == data.length ? 0 : dataStart);
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return this.pid;
+    }
+
+    /**
+     * @return the number of bytes free on this page
+     */
+    public synchronized int getFreeSpace() {
+        return dataStart - HEADER_SIZE - numSlots * SLOT_SIZE;
+    }
+
+    /**
+     * @return the number of tuples on this page
+     */
+    public synchronized int getNumTuples() {
+        int n = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (tuples[i] != null)
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Adds the specified tuple to the page, in the first empty slot of the
+     * directory or in a new one.
+     * @throws DbException if the tuple does not fit in the free space
+     */
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        byte[] record = encode(t);
+        int slot = 0;
+        while (slot < numSlots && tuples[slot] != null)
+            slot++;
+        int need = record.length + (slot == numSlots ? SLOT_SIZE : 0);
+        if (need > getFreeSpace())
+            throw new DbException("No room for the tuple in page");
+
+        if (slot == numSlots) {
+            numSlots++;
+            if (numSlots > tuples.length)
+                tuples = Arrays.copyOf(tuples, tuples.length * 2);
+        }
+        dataStart -= record.length;
+        System.arraycopy(record, 0, data, dataStart, record.length);
+        setSlot(slot, dataStart, record.length);
+        writeHeader();
+
+        t.setRecordId(new RecordId(pid, slot));
+        tuples[slot] = t;
+    }
+
+    /**
+     * Delete the specified tuple from the page, moving the records in front
+     * of it over its bytes.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !this.pid.equals(rid.getPageId()))
+            throw new DbException("Tuple is not on this page");
+        int slot = rid.tupleno();
+        if (slot < 0 || slot >= numSlots || tuples[slot] == null)
+            throw new DbException("Tuple slot is already empty");
+
+        int offset = recordOffset(slot);
+        int length = recordLength(slot);
+        System.arraycopy(data, dataStart, data, dataStart + length, offset - dataStart);
+        Arrays.fill(data, dataStart, dataStart + length, (byte) 0);
+        for (int i = 0; i < numSlots; i++) {
+            int other = recordOffset(i);
+            if (other != 0 && other < offset)
+                setSlot(i, other + length, recordLength(i));
+        }
+        setSlot(slot, 0, 0);
+        dataStart += length;
+        tuples[slot] = null;
+        // empty entries at the end of the directory are given back
+        while (numSlots > 0 && tuples[numSlots - 1] == null)
+            numSlots--;
+        writeHeader();
+        t.setRecordId(null);
+    }
+
+    /**
+     * Delete the specified tuples from the page; when they are all the
+     * tuples of the page, the page is emptied at once.
+     * @throws DbException if a tuple is not on this page, or its slot is
+     *         empty; then no tuple is deleted
+     */
+    public synchronized void deleteTuples(Collection<Tuple> ts) throws DbException {
+        BitSet slots = new BitSet(numSlots);
+        for (Tuple t : ts) {
+            RecordId rid = t.getRecordId();
+            if (rid == null || !this.pid.equals(rid.getPageId()))
+                throw new DbException("Tuple is not on this page");
+            int slot = rid.tupleno();
+            if (slot < 0 || slot >= numSlots || tuples[slot] == null || slots.get(slot))
+                throw new DbException("Tuple slot is already empty");
+            slots.set(slot);
+        }
+        if (slots.cardinality() == getNumTuples()) {
+            Arrays.fill(data, (byte) 0);
+            Arrays.fill(tuples, null);
+            numSlots = 0;
+            dataStart = data.length;
+            for (Tuple t : ts)
+                t.setRecordId(null);
+            return;
+        }
+        for (Tuple t : ts)
+            deleteTuple(t);
+    }
+
+    /**
+     * @return an iterator over the tuples of this page as of the call
+     */
+    public synchronized Iterator<Tuple> iterator() {
+        List<Tuple> used = new ArrayList<Tuple>(numSlots);
+        for (int i = 0; i < numSlots; i++) {
+            if (tuples[i] != null)
+                used.add(tuples[i]);
+        }
+        return Collections.unmodifiableList(used).iterator();
+    }
+
+    /**
+     * @return a copy of the image of this page
+     */
+    public synchronized byte[] getPageData() {
+        return data.clone();
+    }
+
+    public synchronized void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        this.dirty_tid = tid;
+    }
+
+    public synchronized TransactionId isDirty() {
+        if (this.dirty)
+            return this.dirty_tid;
+        return null;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public SlottedPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized(oldDataLock)
+            {
+                oldDataRef = oldData;
+            }
+            return new SlottedPage(pid, td, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        // copy before taking oldDataLock: getPageData latches the page
+        byte[] data = getPageData();
+        synchronized(oldDataLock)
+        {
+            oldData = data;
+        }
+    }
+
+    private final HeapPageId pid;
+    private final TupleDesc td;
+    // the authoritative image of the page, and a view of it
+    private final byte[] data;
+    private final ByteBuffer image;
+    private int numSlots;
+    private int dataStart;
+    // decoded record of each slot of the directory, null if it is empty
+    private Tuple[] tuples;
+
+    private boolean dirty;
+    private TransactionId dirty_tid;
+
+    private byte[] oldData;
+    private final Object oldDataLock = new Object();
+}
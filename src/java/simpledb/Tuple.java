@@ -1,12 +1,18 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page may be lazy: it keeps a view of its serialized
+ * bytes and decodes a field only when it is first asked for.
  */
 public class Tuple implements Serializable {
 
@@ -24,10 +30,47 @@ public class Tuple implements Serializable {
             this.tupleDesc = td;
             // this would actually cause problems when setting field, since it confuses capacity with size of a list
             //this.fields = new ArrayList<Field>(this.tupleDesc.numFields());
-            this.fields = Arrays.asList(new Field[10]);
+            this.fields = Arrays.asList(new Field[Math.max(10, td.numFields())]);
         }
     }
 
+    /**
+     * Create a lazy tuple whose fields are decoded from source when they are
+     * first asked for. The bytes of the tuple must not change while it may
+     * still decode them.
+     * 
+     * @param td
+     *            the schema of this tuple
+     * @param source
+     *            the buffer holding the serialized tuple
+     * @param offset
+     *            the index of the first byte of the tuple in source
+     */
+    Tuple(TupleDesc td, ByteBuffer source, int offset) {
+        this(td);
+        this.source = source;
+        this.sourceDesc = td;
+        this.sourceOffset = offset;
+    }
+
+    /**
+     * Create a lazy tuple of a page that stores each column apart: field i
+     * of the tuple in slot slot is at columns[i] + slot * its length.
+     * 
+     * @param td
+     *            the schema of this tuple
+     * @param source
+     *            the buffer holding the page
+     * @param columns
+     *            the index of the first value of each column in source
+     * @param slot
+     *            the slot of the tuple
+     */
+    Tuple(TupleDesc td, ByteBuffer source, int[] columns, int slot) {
+        this(td, source, slot);
+        this.sourceColumns = columns;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -77,12 +120,49 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         if (i < this.tupleDesc.numFields()) {
-            return this.fields.get(i);
+            Field f = this.fields.get(i);
+            ByteBuffer source = this.source;
+            if (f == null && source != null) {
+                f = decode(source, i);
+            }
+            return f;
         } else {
             return null;
         }
     }
 
+    private Field decode(ByteBuffer source, int i) {
+        Field f;
+        Type type = this.sourceDesc.getFieldType(i);
+        int[] columns = this.sourceColumns;
+        int offset = columns == null ? this.sourceOffset + this.sourceDesc.getOffset(i)
+                : columns[i] + this.sourceOffset * type.getLen();
+        try {
+            f = type.parse(source, offset);
+        } catch (java.text.ParseException e) {
+            throw new NoSuchElementException("parsing error! " + e.getMessage());
+        }
+        // a racing decode stores an equal field
+        this.fields.set(i, f);
+        return f;
+    }
+
+    /**
+     * Decodes every field not decoded yet and lets go of the bytes of a
+     * lazy tuple, so they may change afterwards.
+     */
+    void materialize() {
+        ByteBuffer source = this.source;
+        if (source != null) {
+            for (int i = 0; i < this.sourceDesc.numFields(); i++) {
+                if (this.fields.get(i) == null) {
+                    decode(source, i);
+                }
+            }
+            this.source = null;
+        }
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
@@ -118,6 +198,7 @@ public class Tuple implements Serializable {
      * */
     public Iterator<Field> fields()
     {
+        materialize();
         return this.fields.listIterator();
     }
     
@@ -129,7 +210,18 @@ public class Tuple implements Serializable {
         this.tupleDesc = td;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
+    }
+
     private RecordId recordId;
     private TupleDesc tupleDesc;
     private List<Field> fields;
+    // serialized bytes of a lazy tuple, null once all fields are decoded
+    private transient ByteBuffer source;
+    private transient TupleDesc sourceDesc;
+    private transient int sourceOffset;
+    // start of each column of a lazy tuple of a columnar page, else null
+    private transient int[] sourceColumns;
 }
\ No newline at end of file
@@ -108,6 +108,7 @@ public class TupleDesc implements Serializable {
 
     public void appendTDItem(TDItem tdItem) {
         this.tdItems.add(tdItem);
+        this.offsets = null;
         return;
     }
 
@@ -185,6 +186,32 @@ public class TupleDesc implements Serializable {
         return totalLen;
     }
 
+    /**
+     * Gets the offset of the ith field in the serialized form of a tuple.
+     * 
+     * @param i
+     *            index of the field. It must be a valid index.
+     * @return the number of bytes before the ith field
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getOffset(int i) throws NoSuchElementException {
+        int[] offsets = this.offsets;
+        if (offsets == null || offsets.length != this.tdItems.size()) {
+            offsets = new int[this.tdItems.size()];
+            int offset = 0;
+            for (int j = 0; j < offsets.length; j++) {
+                offsets[j] = offset;
+                offset += this.getFieldType(j).getLen();
+            }
+            this.offsets = offsets;
+        }
+        if (i < 0 || i >= offsets.length) {
+            throw new NoSuchElementException();
+        }
+        return offsets[i];
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -263,4 +290,6 @@ public class TupleDesc implements Serializable {
     }
 
     private List<TDItem> tdItems;
+    // field offsets, computed on first use
+    private transient int[] offsets;
 }
\ No newline at end of file
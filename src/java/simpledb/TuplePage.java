@@ -0,0 +1,52 @@
+package simpledb;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * TuplePage is a page of a HeapFile, in one of the page formats a HeapFile
+ * can store: fixed size slots ({@link HeapPage}) or a slot directory with
+ * variable length records ({@link SlottedPage}).
+ * <p>
+ * The free space of a page is measured in units of its format, slots for a
+ * HeapPage and bytes for a SlottedPage; {@link HeapFile#spaceFor} tells how
+ * many of them a tuple needs.
+ */
+public interface TuplePage extends Page {
+
+    public HeapPageId getId();
+
+    /**
+     * @return the room left on this page, in the units of its format
+     */
+    public int getFreeSpace();
+
+    /**
+     * Adds the specified tuple to the page; the tuple should be updated to
+     * reflect that it is now stored on this page.
+     * @throws DbException if the tuple does not fit on the page
+     */
+    public void insertTuple(Tuple t) throws DbException;
+
+    /**
+     * Delete the specified tuple from the page; the tuple should be updated
+     * to reflect that it is no longer stored on any page.
+     * @throws DbException if this tuple is not on this page
+     */
+    public void deleteTuple(Tuple t) throws DbException;
+
+    /**
+     * Delete the specified tuples from the page in one visit, as deleteTuple
+     * does for each of them. A page that loses all its tuples is cleared at
+     * once.
+     * @throws DbException if a tuple is not on this page, or its slot is
+     *         empty; then no tuple is deleted
+     */
+    public void deleteTuples(Collection<Tuple> ts) throws DbException;
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on
+     *   this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator();
+}
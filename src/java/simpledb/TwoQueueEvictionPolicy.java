@@ -0,0 +1,94 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Full 2Q eviction (Johnson and Shasha). Newly loaded pages enter A1in, a FIFO
+ * holding about a quarter of the pool. Pages evicted from A1in are remembered
+ * by id only in the ghost queue A1out. A page that is loaded again while its
+ * id is still in A1out has proved it is re-referenced and goes to Am, an LRU
+ * list for the hot set. Hits on A1in pages are treated as correlated and do
+ * not promote them, so a large scan only ever cycles through A1in.
+ *
+ * @Threadsafe
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    public TwoQueueEvictionPolicy() {
+        this.a1in = new LinkedHashMap<PageId, Boolean>();
+        this.a1out = new LinkedHashMap<PageId, Boolean>();
+        this.am = new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+        setCapacity(BufferPool.DEFAULT_PAGES);
+    }
+
+    public synchronized void setCapacity(int numPages) {
+        this.kin = Math.max(1, numPages / 4);
+        this.kout = Math.max(1, numPages / 2);
+        trimGhosts();
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (this.am.containsKey(pid) || this.a1in.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        if (this.a1out.remove(pid) != null) {
+            this.am.put(pid, Boolean.TRUE);
+        } else {
+            this.a1in.put(pid, Boolean.TRUE);
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // a get() on the access-ordered map moves pid to the MRU end
+        this.am.get(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (this.a1in.remove(pid) != null) {
+            this.a1out.put(pid, Boolean.TRUE);
+            trimGhosts();
+        } else {
+            this.am.remove(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Candidates candidates) {
+        PageId victim = null;
+        if (this.a1in.size() > this.kin || this.am.isEmpty()) {
+            victim = firstEvictable(this.a1in, candidates);
+            if (victim == null) {
+                victim = firstEvictable(this.am, candidates);
+            }
+        } else {
+            victim = firstEvictable(this.am, candidates);
+            if (victim == null) {
+                victim = firstEvictable(this.a1in, candidates);
+            }
+        }
+        return victim;
+    }
+
+    private static PageId firstEvictable(LinkedHashMap<PageId, Boolean> queue, Candidates candidates) {
+        for (PageId pid : queue.keySet()) {
+            if (candidates.isEvictable(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private void trimGhosts() {
+        Iterator<PageId> it = this.a1out.keySet().iterator();
+        while (this.a1out.size() > this.kout && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private final LinkedHashMap<PageId, Boolean> a1in;
+    private final LinkedHashMap<PageId, Boolean> a1out;
+    private final LinkedHashMap<PageId, Boolean> am;
+    private int kin;
+    private int kout;
+}
@@ -0,0 +1,329 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Vacuum compacts a HeapFile online: it moves the tuples of the pages at
+ * the end of the file into the free space of pages before them, then
+ * truncates the file to the pages that still hold tuples. After mass
+ * deletes, scans then no longer read and iterate mostly empty pages.
+ * <p>
+ * The vacuum empties the last page one at a time, each in a transaction of
+ * its own that takes the same locks as any other, so it runs alongside
+ * other transactions. A moved tuple gets a new RecordId; no transaction can
+ * hold the old one, as it would have kept the page locked. If the vacuum
+ * loses a deadlock it aborts the page it was moving and tries again. Its
+ * I/O is bounded by a rate of pages per second.
+ * <p>
+ * It stops when no page before the last one has room for its tuples,
+ * then truncates the file.
+ *
+ * @see HeapFile#truncate
+ */
+public class Vacuum {
+
+    /** Number of times a page is tried again after losing a deadlock. */
+    public static final int MAX_RETRIES = 5;
+
+    /**
+     * What a vacuum did. Scan times are -1 unless the vacuum was asked to
+     * measure them.
+     */
+    public static class Report {
+        /** @return the number of pages of the file before the vacuum */
+        public int getPagesBefore() {
+            return this.pagesBefore;
+        }
+
+        /** @return the number of pages of the file after the vacuum */
+        public int getPagesAfter() {
+            return this.pagesAfter;
+        }
+
+        /** @return the number of pages the vacuum truncated */
+        public int getPagesReclaimed() {
+            return this.pagesBefore - this.pagesAfter;
+        }
+
+        /** @return the number of tuples the vacuum moved */
+        public int getTuplesMoved() {
+            return this.tuplesMoved;
+        }
+
+        /** @return the time of a full scan before the vacuum, in ms */
+        public long getScanMillisBefore() {
+            return this.scanMillisBefore;
+        }
+
+        /** @return the time of a full scan after the vacuum, in ms */
+        public long getScanMillisAfter() {
+            return this.scanMillisAfter;
+        }
+
+        /**
+         * @return how many times faster a full scan runs after the vacuum:
+         *   as measured if scans were measured, else as the ratio of pages
+         */
+        public double getScanSpeedup() {
+            if (this.scanMillisBefore >= 0 && this.scanMillisAfter > 0) {
+                return (double) this.scanMillisBefore / this.scanMillisAfter;
+            }
+            return (double) this.pagesBefore / Math.max(1, this.pagesAfter);
+        }
+
+        public String toString() {
+            String s = "vacuum: " + getPagesReclaimed() + " of " + this.pagesBefore
+                    + " pages reclaimed, " + this.tuplesMoved + " tuples moved";
+            if (this.scanMillisBefore >= 0) {
+                s += ", full scan " + this.scanMillisBefore + " ms -> " + this.scanMillisAfter + " ms";
+            }
+            return s + String.format(", scan speed-up %.2fx", getScanSpeedup());
+        }
+
+        private int pagesBefore;
+        private int pagesAfter;
+        private int tuplesMoved;
+        private long scanMillisBefore = -1;
+        private long scanMillisAfter = -1;
+    }
+
+    /**
+     * Creates a vacuum of file, which must be in the catalog, with no bound
+     * on its I/O rate.
+     */
+    public Vacuum(HeapFile file) {
+        this.file = file;
+        this.pagesPerSecond = 0;
+        this.measureScans = false;
+    }
+
+    /**
+     * Bounds the I/O of the vacuum to about pagesPerSecond pages fetched
+     * per second; 0 for no bound.
+     */
+    public Vacuum setPagesPerSecond(int pagesPerSecond) {
+        this.pagesPerSecond = pagesPerSecond;
+        return this;
+    }
+
+    /** Makes the vacuum time a full scan of the file before and after. */
+    public Vacuum setMeasureScans(boolean measureScans) {
+        this.measureScans = measureScans;
+        return this;
+    }
+
+    /**
+     * Runs the vacuum on a daemon thread. Cancelling the future with
+     * interruption stops the vacuum after the page it is moving; the file
+     * is truncated to what was compacted until then.
+     */
+    public Future<Report> start() {
+        FutureTask<Report> task = new FutureTask<Report>(new Callable<Report>() {
+            public Report call() throws Exception {
+                return run();
+            }
+        });
+        Thread thread = new Thread(task, "simpledb-vacuum-" + this.file.getId());
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+
+    /**
+     * Runs the vacuum in the calling thread.
+     * @throws TransactionAbortedException if the vacuum kept losing
+     *   deadlocks on a page
+     */
+    public Report run() throws DbException, IOException, TransactionAbortedException {
+        Report report = new Report();
+        report.pagesBefore = this.file.numPages();
+        if (this.measureScans) {
+            report.scanMillisBefore = scan();
+        }
+        this.started = System.nanoTime();
+        this.fetched = 0;
+
+        int last = this.file.numPages() - 1;
+        while (last > 0 && !Thread.currentThread().isInterrupted()) {
+            int moved = -1;
+            for (int attempt = 0; moved < 0; attempt++) {
+                TransactionId tid = new TransactionId();
+                boolean done = false;
+                try {
+                    moved = emptyPage(tid, last);
+                    // written now whatever the flush policy, so no write
+                    // of the emptied page can race with truncating it
+                    Database.getBufferPool().flushPages(tid);
+                    done = true;
+                } catch (TransactionAbortedException e) {
+                    if (attempt == MAX_RETRIES) {
+                        throw e;
+                    }
+                } finally {
+                    Database.getBufferPool().transactionComplete(tid, done);
+                }
+            }
+            if (moved == Integer.MAX_VALUE) {
+                break; // no room left before the last page
+            }
+            report.tuplesMoved += moved;
+            last--;
+            throttle();
+        }
+
+        truncate();
+        report.pagesAfter = this.file.numPages();
+        if (this.measureScans) {
+            report.scanMillisAfter = scan();
+        }
+        return report;
+    }
+
+    /**
+     * Moves the tuples of page pageNo into pages before it, as tid.
+     * @return the number of tuples moved, or Integer.MAX_VALUE if the
+     *   tuples do not all fit before the page; then none are moved
+     */
+    private int emptyPage(TransactionId tid, int pageNo)
+            throws DbException, IOException, TransactionAbortedException {
+        FreeSpaceMap freeSpace = this.file.freeSpaceMap();
+        HeapPageId pid = new HeapPageId(this.file.getId(), pageNo);
+        TuplePage page = fetch(tid, pid);
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+
+        List<TuplePage> targets = new ArrayList<TuplePage>();
+        int[] placement = new int[tuples.size()];
+        int target = -1;
+        int free = 0;
+        for (int k = 0; k < tuples.size(); k++) {
+            int need = this.file.spaceFor(tuples.get(k));
+            while (free < need) {
+                target = freeSpace.findPage(target + 1, need);
+                if (target < 0 || target >= pageNo) {
+                    return Integer.MAX_VALUE;
+                }
+                TuplePage candidate = fetch(tid, new HeapPageId(this.file.getId(), target));
+                free = candidate.getFreeSpace();
+                freeSpace.set(target, free);
+                if (free >= need) {
+                    targets.add(candidate);
+                }
+            }
+            placement[k] = targets.size() - 1;
+            free -= need;
+        }
+
+        for (int k = 0; k < tuples.size(); k++) {
+            Tuple t = tuples.get(k);
+            Tuple copy = new Tuple(this.file.getTupleDesc());
+            for (int j = 0; j < this.file.getTupleDesc().numFields(); j++) {
+                copy.setField(j, t.getField(j));
+            }
+            TuplePage into = targets.get(placement[k]);
+            into.insertTuple(copy);
+            into.markDirty(true, tid);
+            page.deleteTuple(t);
+            page.markDirty(true, tid);
+        }
+        for (TuplePage into : targets) {
+            freeSpace.set(into.getId().pageNumber(), into.getFreeSpace());
+        }
+        freeSpace.set(pageNo, page.getFreeSpace());
+        return tuples.size();
+    }
+
+    /** Fetches a page READ_WRITE for tid, without keeping it pinned. */
+    private TuplePage fetch(TransactionId tid, HeapPageId pid)
+            throws DbException, TransactionAbortedException {
+        TuplePage page = (TuplePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        // the lock keeps the page in the pool until tid completes
+        Database.getBufferPool().unpinPage(tid, pid);
+        this.fetched++;
+        return page;
+    }
+
+    /**
+     * Truncates the empty pages at the end of the file. They are locked
+     * first, so no transaction is using them, and dropped from the buffer
+     * pool.
+     */
+    private void truncate() throws IOException {
+        BufferPool bufferPool = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        boolean done = false;
+        try {
+            int pages = this.file.numPages();
+            int keep = pages;
+            List<HeapPageId> empty = new ArrayList<HeapPageId>();
+            while (keep > 1) {
+                HeapPageId pid = new HeapPageId(this.file.getId(), keep - 1);
+                TuplePage page = fetch(tid, pid);
+                if (page.iterator().hasNext() || page.isDirty() != null) {
+                    break;
+                }
+                empty.add(pid);
+                keep--;
+            }
+            if (this.file.truncate(keep, pages)) {
+                for (HeapPageId pid : empty) {
+                    bufferPool.discardPage(pid);
+                }
+            }
+            done = true;
+        } catch (DbException e) {
+            Debug.log("vacuum of table %d did not truncate: %s", this.file.getId(), e);
+        } catch (TransactionAbortedException e) {
+            Debug.log("vacuum of table %d did not truncate: %s", this.file.getId(), e);
+        } finally {
+            bufferPool.transactionComplete(tid, done);
+        }
+    }
+
+    /** Sleeps as long as it takes to keep to the page rate. */
+    private void throttle() {
+        if (this.pagesPerSecond <= 0) {
+            return;
+        }
+        long due = this.started + this.fetched * 1000000000L / this.pagesPerSecond;
+        long wait = (due - System.nanoTime()) / 1000000;
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** @return the time of a full scan of the file, in ms */
+    private long scan() throws DbException, IOException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        DbFileIterator it = this.file.iterator(tid);
+        try {
+            it.open();
+            while (it.hasNext()) {
+                it.next();
+            }
+            it.close();
+        } finally {
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private final HeapFile file;
+    private int pagesPerSecond;
+    private boolean measureScans;
+    // start of the run and pages fetched since, for the throttle
+    private long started;
+    private long fetched;
+}
@@ -0,0 +1,429 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    /** Counts readPage calls and makes each one slow enough to overlap. */
+    static class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+
+        SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        protected boolean readsRuns() {
+            return false;
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private SlowHeapFile table;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 2000, 1000, null, null);
+        table = new SlowHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Concurrent misses on the same page must be served by one read, and
+     * every caller must get the same frame.
+     */
+    @Test public void concurrentMissesShareOneRead() throws Exception {
+        final int THREADS = 8;
+        final HeapPageId pid = new HeapPageId(table.getId(), 0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Page[] seen = new Page[THREADS];
+        final Exception[] errors = new Exception[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        seen[n] = Database.getBufferPool().getPage(
+                                new TransactionId(), pid, Permissions.READ_ONLY);
+                    } catch (Exception e) {
+                        errors[n] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(1, table.reads.get());
+        for (int i = 0; i < THREADS; i++) {
+            assertNull(errors[i]);
+            assertSame(seen[0], seen[i]);
+        }
+    }
+
+    /**
+     * A page written out while its transaction is still running must get
+     * its committed image back on disk when the transaction aborts.
+     */
+    @Test public void abortRestoresStolenPage() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.setFlushPolicy(true, true);
+
+        TransactionId writer = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(writer, pid, Permissions.READ_WRITE);
+        int empty = page.getNumEmptySlots();
+        Tuple victim = page.iterator().next();
+        bp.deleteTuple(writer, victim);
+        bp.unpinPage(writer, pid);
+
+        // push the dirty page out of the two-frame pool
+        TransactionId reader = new TransactionId();
+        for (int i = 1; i <= 2; i++) {
+            HeapPageId other = new HeapPageId(hf.getId(), i);
+            bp.getPage(reader, other, Permissions.READ_ONLY);
+            bp.unpinPage(reader, other);
+        }
+        bp.transactionComplete(reader);
+
+        bp.transactionComplete(writer, false);
+
+        TransactionId check = new TransactionId();
+        page = (HeapPage) bp.getPage(check, pid, Permissions.READ_ONLY);
+        assertEquals(empty, page.getNumEmptySlots());
+        bp.transactionComplete(check);
+    }
+
+    /**
+     * Under NO FORCE commit leaves the pages dirty, and the background writer
+     * gets them to disk shortly after.
+     */
+    @Test public void backgroundWriterFlushesCommittedPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        BufferPool bp = Database.resetBufferPool(10);
+        bp.setFlushPolicy(true, false);
+
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        int empty = page.getNumEmptySlots();
+        bp.deleteTuple(tid, page.iterator().next());
+        bp.transactionComplete(tid);
+
+        // the page is marked clean just before its image is written
+        for (int i = 0; i < 50 && ((HeapPage) hf.readPage(pid)).getNumEmptySlots() == empty; i++) {
+            Thread.sleep(BackgroundWriter.INTERVAL_MS);
+        }
+        assertNull(page.isDirty());
+        assertEquals(empty + 1, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * A scan of a table larger than the pool reads through a ring and leaves
+     * the pages already cached for other queries where they are.
+     */
+    @Test public void largeScanKeepsHotPages() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(1, 992 * 30, null, null);
+        BufferPool bp = Database.resetBufferPool(10);
+        HeapPageId hot = new HeapPageId(table.getId(), 0);
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, hot, Permissions.READ_ONLY);
+
+        DbFileIterator it = big.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        bp.transactionComplete(tid);
+
+        assertEquals(992 * 30, count);
+        assertTrue(bp.isResident(hot));
+        assertFalse(bp.isResident(new HeapPageId(big.getId(), 0)));
+    }
+
+    /**
+     * getPages locks and pins every page, serves the resident ones from the
+     * pool and reads each run of the others with one read.
+     */
+    @Test public void getPagesReadsRunsAtOnce() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 8, null, null);
+        BufferPool bp = Database.resetBufferPool(10);
+        BufferPoolStats stats = bp.getStats();
+        TransactionId tid = new TransactionId();
+        HeapPageId third = new HeapPageId(hf.getId(), 3);
+        Page resident = bp.getPage(tid, third, Permissions.READ_ONLY);
+        bp.unpinPage(tid, third);
+
+        List<Page> pages = bp.getPages(tid, hf.getId(), 0, 8, Permissions.READ_ONLY);
+        assertEquals(8, pages.size());
+        assertTrue(Arrays.equals(resident.getPageData(), pages.get(3).getPageData()));
+        for (int i = 0; i < 8; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            assertEquals(pid, pages.get(i).getId());
+            assertTrue(bp.holdsLock(tid, pid));
+            assertTrue(bp.isPinned(pid));
+            assertTrue(Arrays.equals(hf.readPage(pid).getPageData(), pages.get(i).getPageData()));
+        }
+        // page 3, then pages 0-2 and 4-7
+        assertEquals(3, stats.getReads());
+        assertEquals(1 + 7, stats.getMisses());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Overlapping getPages calls read each page once: the second leaves the
+     * pages the first has in flight to it, reads only the rest, and gets the
+     * same frames.
+     */
+    @Test public void overlappingGetPagesShareReads() throws Exception {
+        final Exception[] errors = new Exception[1];
+        final List<List<Page>> first = new ArrayList<List<Page>>();
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    first.add(Database.getBufferPool().getPages(
+                            new TransactionId(), table.getId(), 0, 3, Permissions.READ_ONLY));
+                } catch (Exception e) {
+                    errors[0] = e;
+                }
+            }
+        };
+        reader.start();
+        // pages 0 to 2 are read one by one, 50ms each
+        while (!Database.getBufferPool().isLoading(new HeapPageId(table.getId(), 2))) {
+            Thread.sleep(1);
+        }
+        List<Page> second = Database.getBufferPool().getPages(
+                new TransactionId(), table.getId(), 1, 3, Permissions.READ_ONLY);
+        reader.join();
+
+        assertNull(errors[0]);
+        assertEquals(4, table.reads.get());
+        assertSame(first.get(0).get(1), second.get(0));
+        assertSame(first.get(0).get(2), second.get(1));
+    }
+
+    /**
+     * A read-ahead issued before some page is written is not installed when
+     * it lands: it may predate a newer copy that left the pool. The page is
+     * read again instead.
+     */
+    @Test public void readBeforeWriteIsReadAgain() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId written = new HeapPageId(table.getId(), 0);
+        HeapPageId prefetched = new HeapPageId(table.getId(), 1);
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(tid, written, Permissions.READ_WRITE);
+
+        bp.prefetchPage(prefetched);
+        assertTrue(bp.isLoading(prefetched));
+        // written at commit, while the 50ms read is in flight
+        bp.deleteTuple(tid, page.iterator().next());
+        bp.transactionComplete(tid);
+        while (bp.isLoading(prefetched)) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(3, table.reads.get());
+        assertTrue(bp.isResident(prefetched));
+    }
+
+    /**
+     * An off-heap pool decodes clean pages on access and keeps a page fetched
+     * READ_WRITE on the heap until its transaction completes.
+     */
+    @Test public void offHeapPool() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        BufferPool bp = Database.resetBufferPool(3,
+                BufferPool.newEvictionPolicy(BufferPool.DEFAULT_EVICTION_POLICY), true);
+        assertTrue(bp.isOffHeap());
+
+        TransactionId tid = new TransactionId();
+        HeapPage a = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        HeapPage b = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertNotSame(a, b);
+        assertTrue(Arrays.equals(a.getPageData(), b.getPageData()));
+
+        HeapPage w = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        assertSame(w, bp.getPage(tid, pid, Permissions.READ_WRITE));
+        int empty = w.getNumEmptySlots();
+        bp.deleteTuple(tid, w.iterator().next());
+        bp.transactionComplete(tid);
+
+        tid = new TransactionId();
+        HeapPage c = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertNotSame(w, c);
+        assertEquals(empty + 1, c.getNumEmptySlots());
+
+        // more pages than frames
+        bp.unpinPage(tid, pid);
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPageId other = new HeapPageId(hf.getId(), i);
+            bp.getPage(tid, other, Permissions.READ_ONLY);
+            bp.unpinPage(tid, other);
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * The statistics count hits, misses and evictions, break residency down
+     * by table and are published over JMX.
+     */
+    @Test public void statsCountPoolActivity() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        BufferPoolStats stats = bp.getStats();
+
+        TransactionId tid = new TransactionId();
+        for (int pgNo : new int[] { 0, 0, 1, 2 }) {
+            HeapPageId pid = new HeapPageId(hf.getId(), pgNo);
+            bp.getPage(tid, pid, Permissions.READ_ONLY);
+            bp.unpinPage(tid, pid);
+        }
+        bp.transactionComplete(tid);
+
+        assertEquals(1, stats.getHits());
+        assertEquals(3, stats.getMisses());
+        assertEquals(3, stats.getReads());
+        assertEquals(1, stats.getEvictions());
+        assertEquals(2, stats.getResidentPages());
+        String name = Database.getCatalog().getTableName(hf.getId());
+        assertEquals(Integer.valueOf(2), stats.getResidentPagesByTable().get(name));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Object misses = server.getAttribute(new ObjectName(BufferPoolStats.OBJECT_NAME), "Misses");
+        assertEquals(Long.valueOf(3), misses);
+    }
+
+    /**
+     * A pinned frame is never evicted; once unpinned it may be.
+     */
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        HeapPageId p2 = new HeapPageId(hf.getId(), 2);
+
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        assertTrue(bp.isPinned(p0));
+        try {
+            bp.getPage(tid, p2, Permissions.READ_ONLY);
+            fail("expected DbException: every frame is pinned");
+        } catch (DbException expected) {
+        }
+
+        bp.unpinPage(tid, p0);
+        assertFalse(bp.isPinned(p0));
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+        assertFalse(bp.isResident(p0));
+        assertTrue(bp.isResident(p1));
+
+        // completing the transaction drops the pins it still holds
+        bp.transactionComplete(tid);
+        assertFalse(bp.isPinned(p1));
+        assertFalse(bp.isPinned(p2));
+    }
+
+    /** Reads pages [from, to) of a table and unpins them again. */
+    private static void touch(BufferPool bp, TransactionId tid, HeapFile hf, int from, int to)
+            throws Exception {
+        for (int i = from; i < to; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            bp.getPage(tid, pid, Permissions.READ_ONLY);
+            bp.unpinPage(tid, pid);
+        }
+    }
+
+    /**
+     * The pool can grow without losing pages and shrink down to its new
+     * capacity.
+     */
+    @Test public void resizeKeepsCachedPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 5000, null, null);
+        BufferPool bp = Database.resetBufferPool(4);
+        TransactionId tid = new TransactionId();
+        touch(bp, tid, hf, 0, 4);
+
+        bp.setNumPages(8);
+        touch(bp, tid, hf, 4, 8);
+        assertEquals(8, bp.getResidentPages(hf.getId()));
+        for (int i = 0; i < 8; i++) {
+            assertTrue(bp.isResident(new HeapPageId(hf.getId(), i)));
+        }
+
+        bp.setNumPages(3);
+        assertEquals(3, bp.getNumPages());
+        assertEquals(3, bp.getResidentPages(hf.getId()));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A table at its maximum replaces its own pages; a table at its minimum
+     * keeps its pages while other tables come and go.
+     */
+    @Test public void tableQuotas() throws Exception {
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        HeapFile bulky = SystemTestUtil.createRandomHeapFile(2, 10000, null, null);
+        BufferPool bp = Database.resetBufferPool(6);
+        bp.setTableQuota(small.getId(), 2, 0);
+        bp.setTableQuota(bulky.getId(), 0, 3);
+
+        TransactionId tid = new TransactionId();
+        touch(bp, tid, small, 0, 2);
+        touch(bp, tid, bulky, 0, bulky.numPages());
+        assertEquals(3, bp.getResidentPages(bulky.getId()));
+        assertEquals(2, bp.getResidentPages(small.getId()));
+
+        // without a maximum the bulky table takes the rest, but not the minimum
+        bp.setTableQuota(bulky.getId(), 0, 0);
+        touch(bp, tid, bulky, 0, bulky.numPages());
+        assertEquals(4, bp.getResidentPages(bulky.getId()));
+        assertEquals(2, bp.getResidentPages(small.getId()));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
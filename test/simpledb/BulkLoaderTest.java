@@ -0,0 +1,127 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BulkLoaderTest extends SimpleDbTestBase {
+    private static final Type[] TYPES = new Type[] { Type.INT_TYPE, Type.STRING_TYPE };
+
+    private File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("bulk", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    private static byte[] contents(File f) throws IOException {
+        byte[] data = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * Typed rows are written as pages a HeapFile reads back, and an empty
+     * load writes one empty page.
+     */
+    @Test public void typedRows() throws Exception {
+        File f = tempFile(".dat");
+        BulkLoader loader = new BulkLoader(f, BufferPool.getPageSize(), TYPES);
+        for (int i = 0; i < 1000; i++) {
+            loader.add(new IntField(i), new StringField("row " + i, Type.STRING_LEN));
+        }
+        int pages = loader.close();
+        assertEquals(1000, loader.getRowCount());
+        assertEquals(pages * BufferPool.getPageSize(), f.length());
+
+        HeapFile hf = new HeapFile(f, new TupleDesc(TYPES));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertEquals(pages, hf.numPages());
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        for (int i = 0; i < 1000; i++) {
+            Tuple t = it.next();
+            assertEquals(new IntField(i), t.getField(0));
+            assertEquals(new StringField("row " + i, Type.STRING_LEN), t.getField(1));
+        }
+        assertFalse(it.hasNext());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        File empty = tempFile(".dat");
+        assertEquals(1, new BulkLoader(empty, BufferPool.getPageSize(), TYPES).close());
+        assertArrayEquals(HeapPage.createEmptyPageData(), contents(empty));
+    }
+
+    /**
+     * Parsing on several threads writes the same file as parsing on one;
+     * bad lines are skipped either way.
+     */
+    @Test public void parallelParse() throws Exception {
+        File text = tempFile(".txt");
+        PrintWriter out = new PrintWriter(new FileWriter(text));
+        int good = 0;
+        for (int i = 0; i < 50000; i++) {
+            if (i % 997 == 0) {
+                out.println(i + ",too,many");
+            } else if (i % 1009 == 0) {
+                out.println("x" + i + ",not a number");
+            } else if (i % 1013 == 0) {
+                out.println();
+            } else {
+                out.println(i + " , name " + i);
+                good++;
+            }
+        }
+        out.close();
+
+        File serial = tempFile(".dat");
+        File parallel = tempFile(".dat");
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            HeapFileEncoder.convert(text, serial, BufferPool.getPageSize(), 2, TYPES, ',');
+            HeapFileEncoder.convert(text, parallel, BufferPool.getPageSize(), 2, TYPES, ',', 4);
+        } finally {
+            System.setOut(stdout);
+        }
+        assertTrue(serial.length() > BulkLoader.WRITE_PAGES * BufferPool.getPageSize());
+        assertArrayEquals(contents(serial), contents(parallel));
+
+        HeapFile hf = new HeapFile(parallel, new TupleDesc(TYPES));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new StringField("name " + ((IntField) t.getField(0)).getValue(), Type.STRING_LEN),
+                    t.getField(1));
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(good, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkLoaderTest.class);
+    }
+}
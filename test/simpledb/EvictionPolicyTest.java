@@ -0,0 +1,133 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class EvictionPolicyTest {
+
+    /** Every resident page is evictable. */
+    private static final EvictionPolicy.Candidates ALL = new EvictionPolicy.Candidates() {
+        public boolean isEvictable(PageId pid) {
+            return true;
+        }
+    };
+
+    private static HeapPageId pid(int pgNo) {
+        return new HeapPageId(-1, pgNo);
+    }
+
+    /**
+     * Unit test for the CLOCK policy: a page referenced since the hand last
+     * passed gets a second chance.
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy policy = new ClockEvictionPolicy();
+        policy.setCapacity(3);
+        for (int i = 0; i < 3; i++)
+            policy.pageLoaded(pid(i));
+
+        // first sweep clears all bits, so the first page goes
+        assertEquals(pid(0), policy.chooseVictim(ALL));
+        policy.pageRemoved(pid(0));
+
+        policy.pageLoaded(pid(3));
+        policy.pageAccessed(pid(1));
+        // page 1 was referenced again, page 2 was not
+        assertEquals(pid(2), policy.chooseVictim(ALL));
+    }
+
+    /**
+     * Unit test for LRU-K: pages referenced fewer than K times are evicted
+     * before pages with a full history, regardless of recency.
+     */
+    @Test public void lruKPrefersColdPages() {
+        EvictionPolicy policy = new LruKEvictionPolicy(2);
+        policy.setCapacity(3);
+        policy.pageLoaded(pid(0));
+        policy.pageAccessed(pid(0));
+        policy.pageLoaded(pid(1));
+        policy.pageAccessed(pid(1));
+        policy.pageLoaded(pid(2));
+
+        assertEquals(pid(2), policy.chooseVictim(ALL));
+        policy.pageRemoved(pid(2));
+
+        // page 0 has the oldest second-to-last reference
+        assertEquals(pid(0), policy.chooseVictim(ALL));
+    }
+
+    /**
+     * Unit test for 2Q: a page that comes back while remembered in A1out
+     * goes to Am and survives a following scan.
+     */
+    @Test public void twoQueueScanResistance() {
+        EvictionPolicy policy = new TwoQueueEvictionPolicy();
+        policy.setCapacity(8);
+
+        policy.pageLoaded(pid(0));
+        policy.pageRemoved(pid(0));
+        policy.pageLoaded(pid(0)); // hot page, now in Am
+
+        for (int i = 1; i <= 7; i++) {
+            policy.pageLoaded(pid(i));
+        }
+        for (int i = 8; i < 100; i++) {
+            PageId victim = policy.chooseVictim(ALL);
+            assertFalse(pid(0).equals(victim));
+            policy.pageRemoved(victim);
+            policy.pageLoaded(pid(i));
+        }
+    }
+
+    /**
+     * Unit test for victim filtering: pages refused by the candidates
+     * callback are never chosen.
+     */
+    @Test public void skipsUnevictablePages() {
+        EvictionPolicy[] policies = new EvictionPolicy[] {
+            new ClockEvictionPolicy(), new LruKEvictionPolicy(), new TwoQueueEvictionPolicy()
+        };
+        EvictionPolicy.Candidates onlyOdd = new EvictionPolicy.Candidates() {
+            public boolean isEvictable(PageId pid) {
+                return pid.pageNumber() % 2 == 1;
+            }
+        };
+        EvictionPolicy.Candidates none = new EvictionPolicy.Candidates() {
+            public boolean isEvictable(PageId pid) {
+                return false;
+            }
+        };
+        for (EvictionPolicy policy : policies) {
+            policy.setCapacity(4);
+            for (int i = 0; i < 4; i++)
+                policy.pageLoaded(pid(i));
+            assertEquals(1, policy.chooseVictim(onlyOdd).pageNumber() % 2);
+            assertNull(policy.chooseVictim(none));
+        }
+    }
+
+    /**
+     * Unit test for BufferPool.newEvictionPolicy()
+     */
+    @Test public void policyByName() {
+        assertTrue(BufferPool.newEvictionPolicy("clock") instanceof ClockEvictionPolicy);
+        assertTrue(BufferPool.newEvictionPolicy("LRU-K") instanceof LruKEvictionPolicy);
+        assertTrue(BufferPool.newEvictionPolicy("lru-3") instanceof LruKEvictionPolicy);
+        assertTrue(BufferPool.newEvictionPolicy("2q") instanceof TwoQueueEvictionPolicy);
+        try {
+            BufferPool.newEvictionPolicy("random");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -77,6 +77,73 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * A run of pages read with one scatter read is the pages readPage reads,
+     * and is cut short at the end of the file.
+     */
+    @Test
+    public void readPages() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 5, null, null);
+        List<Page> pages = big.readPages(1, 3);
+        assertEquals(3, pages.size());
+        for (int i = 0; i < 3; i++) {
+            HeapPageId pid = new HeapPageId(big.getId(), 1 + i);
+            assertEquals(pid, pages.get(i).getId());
+            assertTrue(Arrays.equals(big.readPage(pid).getPageData(), pages.get(i).getPageData()));
+        }
+        assertEquals(2, big.readPages(3, 10).size());
+        try {
+            big.readPages(5, 1);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /**
+     * The file stays usable after close, and after a reader was interrupted
+     * while holding the shared channel.
+     */
+    @Test
+    public void readAfterClose() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.close();
+        assertEquals(1, hf.numPages());
+        assertEquals(484, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+
+        Thread.currentThread().interrupt();
+        try {
+            hf.readPage(pid);
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(484, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * A mapped file decodes the same pages, and sees pages appended to it.
+     */
+    @Test
+    public void readMappedPage() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        HeapPageId pid = new HeapPageId(mapped.getId(), 0);
+        assertTrue(Arrays.equals(hf.readPage(pid).getPageData(),
+                mapped.readPage(pid).getPageData()));
+
+        HeapPageId next = new HeapPageId(mapped.getId(), 1);
+        mapped.writePage(new HeapPage(next, HeapPage.createEmptyPageData()));
+        assertEquals(2, mapped.numPages());
+        HeapPage page = (HeapPage) mapped.readPage(next);
+        assertEquals(504, page.getNumEmptySlots());
+
+        // the before image survives the page being written over
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        page.markDirty(true, tid);
+        mapped.writePage(page);
+        assertEquals(504, page.getBeforeImage().getNumEmptySlots());
+        assertEquals(503, ((HeapPage) mapped.readPage(next)).getNumEmptySlots());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -43,6 +43,281 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts go straight to the page with room, and the free space map
+     * survives closing the file.
+     */
+    @Test public void freeSpaceMap() throws Exception {
+        for (int i = 0; i < 3 * 504; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        BufferPoolStats stats = Database.getBufferPool().getStats();
+        long before = stats.getHits() + stats.getMisses();
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(4, empty.numPages());
+        // the full pages are skipped; only the new one is fetched
+        assertEquals(1, stats.getHits() + stats.getMisses() - before);
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        empty.close();
+        FreeSpaceMap map = new FreeSpaceMap(HeapFile.sidecar(empty.getFile(), ".fsm"), empty.numPages());
+        HeapFile.sidecar(empty.getFile(), ".fsm").delete();
+        assertEquals(0, map.get(0));
+        assertEquals(503, map.get(3));
+        assertEquals(3, map.findPage(0));
+    }
+
+    /**
+     * The background writer saves the free space map after a commit, so a
+     * HeapFile opened afresh on the same file skips the full pages without
+     * the old one being closed.
+     */
+    @Test public void freeSpaceMapSavedOnCommit() throws Exception {
+        for (int i = 0; i < 3 * 504; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        java.io.File saved = HeapFile.sidecar(empty.getFile(), ".fsm");
+        for (int tries = 0; tries < 100 && !saved.exists(); tries++) {
+            Thread.sleep(10);
+        }
+        assertTrue(saved.exists());
+
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        FreeSpaceMap map = reopened.freeSpaceMap();
+        HeapFile.sidecar(empty.getFile(), ".fsm").delete();
+        assertEquals(3, reopened.numPages());
+        assertEquals(0, map.get(0));
+        assertEquals(0, map.get(2));
+        assertEquals(-1, map.findPage(0));
+        reopened.close();
+    }
+
+    /**
+     * A batch fills a page at a time: the pages it needs are appended in
+     * one go and each is fetched for the batch only a couple of times.
+     */
+    @Test public void insertTuples() throws Exception {
+        java.util.List<Tuple> batch = new java.util.ArrayList<Tuple>();
+        for (int i = 0; i < 3 * 504 + 1; ++i) {
+            batch.add(Utility.getHeapTuple(i, 2));
+        }
+        BufferPoolStats stats = Database.getBufferPool().getStats();
+        long before = stats.getHits() + stats.getMisses();
+        java.util.List<Page> dirtied = empty.insertTuples(tid, batch);
+        assertEquals(4, empty.numPages());
+        assertEquals(4, dirtied.size());
+        // a shared probe and the exclusive fetch per page
+        assertTrue(stats.getHits() + stats.getMisses() - before <= 2 * 4);
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(i / 504, batch.get(i).getRecordId().getPageId().pageNumber());
+        }
+    }
+
+    /**
+     * A compressed file reads back what was written to it, keeps its pages
+     * across closing it, and is smaller than the same pages stored plain.
+     */
+    @Test public void deleteTuples() throws Exception {
+        java.util.List<Tuple> batch = new java.util.ArrayList<Tuple>();
+        for (int i = 0; i < 3 * 504; ++i) {
+            batch.add(Utility.getHeapTuple(i, 2));
+        }
+        empty.insertTuples(tid, batch);
+        // all of page 0, every other tuple of page 1
+        java.util.List<Tuple> doomed = new java.util.ArrayList<Tuple>(batch.subList(0, 504));
+        for (int i = 504; i < 2 * 504; i += 2) {
+            doomed.add(batch.get(i));
+        }
+        BufferPoolStats stats = Database.getBufferPool().getStats();
+        long before = stats.getHits() + stats.getMisses();
+        java.util.List<Page> dirtied = empty.deleteTuples(tid, doomed);
+        assertEquals(2, dirtied.size());
+        assertEquals(2, stats.getHits() + stats.getMisses() - before);
+
+        HeapPage page0 = (HeapPage) dirtied.get(0);
+        assertEquals(504, page0.getNumEmptySlots());
+        assertArrayEquals(HeapPage.createEmptyPageData(), page0.getPageData());
+        assertEquals(252, ((HeapPage) dirtied.get(1)).getNumEmptySlots());
+        for (Tuple t : doomed) {
+            assertNull(t.getRecordId());
+        }
+        assertEquals(504, empty.freeSpaceMap().get(0));
+    }
+
+    /**
+     * An inserter that appends a page finds it filled by another transaction
+     * by the time it locks it, since the page is in the free space map
+     * first. It appends another page instead of failing.
+     */
+    @Test public void appendedPageFilledFirst() throws Exception {
+        final Thread[] filler = new Thread[1];
+        final Throwable[] failure = new Throwable[1];
+        HeapFile racy = new HeapFile(empty.getFile(), empty.getTupleDesc()) {
+            private FreeSpaceMap map;
+
+            @Override
+            synchronized FreeSpaceMap freeSpaceMap() {
+                if (map == null) {
+                    map = new FreeSpaceMap(HeapFile.sidecar(getFile(), ".racy"), numPages()) {
+                        @Override
+                        public synchronized void set(int pageNo, int free) {
+                            super.set(pageNo, free);
+                            if (filler[0] != null || free < 504) {
+                                // only a page just appended is empty
+                                return;
+                            }
+                            filler[0] = fill(new HeapPageId(getId(), pageNo));
+                        }
+                    };
+                }
+                return map;
+            }
+
+            /**
+             * Another inserter takes the new page and fills it; returns once
+             * it holds the lock on the page.
+             */
+            private Thread fill(final HeapPageId pid) {
+                final TransactionId other = new TransactionId();
+                final BufferPool bp = Database.getBufferPool();
+                Thread t = new Thread() {
+                    public void run() {
+                        try {
+                            HeapPage page = (HeapPage) bp.getPage(other, pid, Permissions.READ_WRITE);
+                            for (int i = 0; i < 504; i++) {
+                                page.insertTuple(Utility.getHeapTuple(i, 2));
+                            }
+                            page.markDirty(true, other);
+                            bp.transactionComplete(other);
+                        } catch (Throwable e) {
+                            failure[0] = e;
+                        }
+                    }
+                };
+                t.start();
+                while (!bp.holdsLock(other, pid) && t.isAlive()) {
+                    Thread.yield();
+                }
+                return t;
+            }
+        };
+        Database.getCatalog().addTable(racy, "racy");
+
+        for (int i = 0; i < 504; i++) {
+            racy.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(1, racy.numPages());
+        Tuple t = Utility.getHeapTuple(0, 2);
+        racy.insertTuple(tid, t);
+        filler[0].join();
+        assertNull(failure[0]);
+        // page 1 was taken, the tuple went to page 2
+        assertEquals(3, racy.numPages());
+        assertEquals(2, t.getRecordId().getPageId().pageNumber());
+    }
+
+    @Test(expected=DbException.class) public void deleteTuplesTwice() throws Exception {
+        Tuple t = Utility.getHeapTuple(1, 2);
+        empty.insertTuple(tid, t);
+        Tuple same = Utility.getHeapTuple(1, 2);
+        same.setRecordId(t.getRecordId());
+        empty.deleteTuples(tid, java.util.Arrays.asList(t, same));
+    }
+
+    /** Collects the result of an asynchronous I/O for a test to wait on. */
+    static class Result<V> implements java.nio.channels.CompletionHandler<V, Void> {
+        final java.util.concurrent.CountDownLatch done = new java.util.concurrent.CountDownLatch(1);
+        V value;
+        Throwable failure;
+
+        public void completed(V value, Void ignored) {
+            this.value = value;
+            done.countDown();
+        }
+
+        public void failed(Throwable failure, Void ignored) {
+            this.failure = failure;
+            done.countDown();
+        }
+
+        V await() throws Exception {
+            assertTrue(done.await(10, java.util.concurrent.TimeUnit.SECONDS));
+            if (failure != null) {
+                throw new AssertionError(failure);
+            }
+            return value;
+        }
+    }
+
+    @Test public void asyncIo() throws Exception {
+        byte[][] images = new byte[4][];
+        for (int i = 0; i < images.length; i++) {
+            HeapPage page = new HeapPage(new HeapPageId(empty.getId(), i), HeapPage.createEmptyPageData());
+            for (int j = 0; j <= i; j++) {
+                page.insertTuple(Utility.getHeapTuple(j, 2));
+            }
+            images[i] = page.getPageData();
+        }
+        Result<Integer> written = new Result<Integer>();
+        empty.writePagesAsync(0, images, null, written);
+        assertEquals(Integer.valueOf(4), written.await());
+        assertEquals(4, empty.numPages());
+
+        // several reads outstanding at once
+        java.util.List<Result<java.util.List<Page>>> reads = new java.util.ArrayList<Result<java.util.List<Page>>>();
+        for (int i = 0; i < images.length; i++) {
+            Result<java.util.List<Page>> read = new Result<java.util.List<Page>>();
+            empty.readPagesAsync(i, 2, null, read);
+            reads.add(read);
+        }
+        for (int i = 0; i < images.length; i++) {
+            java.util.List<Page> pages = reads.get(i).await();
+            assertEquals(Math.min(2, images.length - i), pages.size());
+            assertEquals(new HeapPageId(empty.getId(), i), pages.get(0).getId());
+            assertEquals(504 - (i + 1), ((HeapPage) pages.get(0)).getNumEmptySlots());
+        }
+    }
+
+    @Test public void compressed() throws Exception {
+        java.io.File f = java.io.File.createTempFile("compressed", ".dat");
+        java.io.File directory = HeapFile.sidecar(f, ".pdir");
+        f.delete();
+        f.deleteOnExit();
+        directory.deleteOnExit();
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2), HeapFile.Format.HEAP, false, true);
+        Database.getCatalog().addTable(hf, "compressed");
+        for (int i = 0; i < 3 * 504; ++i) {
+            hf.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        Database.getBufferPool().flushAllPages();
+        assertEquals(3, hf.numPages());
+        assertTrue(f.length() + directory.length() < 3 * BufferPool.getPageSize());
+
+        hf.close();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile again = new HeapFile(f, Utility.getTupleDesc(2), HeapFile.Format.HEAP, false, true);
+        Database.getCatalog().addTable(again, "compressed");
+        assertEquals(3, again.numPages());
+        DbFileIterator it = again.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(new IntField(count), it.next().getField(0));
+            count++;
+        }
+        it.close();
+        assertEquals(3 * 504, count);
+        again.close();
+    }
+
     /**
      * JUnit suite target
      */
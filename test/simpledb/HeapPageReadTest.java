@@ -11,6 +11,7 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
@@ -99,6 +100,34 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.TupleCursor: one cursor is reset over several
+     * pages, skips tuples deleted after the reset and ignores new ones.
+     */
+    @Test public void testCursor() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        HeapPage.TupleCursor cursor = new HeapPage.TupleCursor();
+
+        int count = 0;
+        for (cursor.reset(page); cursor.hasNext(); cursor.next())
+            count++;
+        assertEquals(20, count);
+
+        HeapPage other = new HeapPage(pid, EXAMPLE_DATA);
+        assertSame(cursor, cursor.reset(other));
+        cursor.next();
+        other.insertTuple(Utility.getHeapTuple(1, 2));
+        Iterator<Tuple> it = other.iterator();
+        it.next();
+        other.deleteTuple(it.next());
+        count = 1;
+        while (cursor.hasNext()) {
+            cursor.next();
+            count++;
+        }
+        assertEquals(19, count);
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
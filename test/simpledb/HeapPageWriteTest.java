@@ -1,9 +1,11 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -85,6 +87,31 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Inserts and deletes are patched into the page image, which decodes
+     * to the same tuples, and getPageData hands out copies of it.
+     */
+    @Test public void pageDataFollowsChanges() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple added = Utility.getHeapTuple(new int[] { 17, 42 });
+        page.insertTuple(added);
+        Tuple removed = page.iterator().next();
+        page.deleteTuple(removed);
+
+        byte[] data = page.getPageData();
+        HeapPage copy = new HeapPage(pid, data);
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        Iterator<Tuple> expected = page.iterator();
+        Iterator<Tuple> actual = copy.iterator();
+        while (expected.hasNext()) {
+            assertTrue(TestUtil.compareTuples(expected.next(), actual.next()));
+        }
+        assertFalse(actual.hasNext());
+
+        data[0] = (byte) ~data[0];
+        assertTrue(Arrays.equals(copy.getPageData(), page.getPageData()));
+    }
+
     /**
      * Unit test for HeapPage.deleteTuple() with false tuples
      */
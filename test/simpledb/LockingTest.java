@@ -0,0 +1,172 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockingTest extends SimpleDbTestBase {
+    private static final int TIMEOUT = 100;
+
+    private HeapPageId p0, p1;
+    private TransactionId tid1, tid2, tid3;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // 1024 two-int tuples fill a little over two pages
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1024, null, null);
+        p0 = new HeapPageId(hf.getId(), 0);
+        p1 = new HeapPageId(hf.getId(), 1);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+        bp = Database.getBufferPool();
+    }
+
+    @After public void tearDown() throws Exception {
+        bp.transactionComplete(tid1);
+        bp.transactionComplete(tid2);
+        bp.transactionComplete(tid3);
+    }
+
+    /**
+     * Start a thread that requests pid for tid and wait TIMEOUT ms for it.
+     * @return the thread, to inspect whether it got the lock
+     */
+    private TestUtil.LockGrabber grabLock(TransactionId tid, PageId pid, Permissions perm)
+            throws Exception {
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+        t.start();
+        Thread.sleep(TIMEOUT);
+        return t;
+    }
+
+    /**
+     * Unit test for two shared locks on the same page.
+     */
+    @Test public void acquireReadLocksOnSamePage() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        assertTrue(grabLock(tid2, p0, Permissions.READ_ONLY).acquired());
+        assertTrue(bp.holdsLock(tid1, p0));
+        assertTrue(bp.holdsLock(tid2, p0));
+    }
+
+    /**
+     * Unit test for a shared lock blocking an exclusive lock until the holder
+     * completes.
+     */
+    @Test public void readWriteConflict() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        TestUtil.LockGrabber t = grabLock(tid2, p0, Permissions.READ_WRITE);
+        assertFalse(t.acquired());
+
+        bp.transactionComplete(tid1);
+        t.join(TIMEOUT);
+        assertTrue(t.acquired());
+        assertFalse(bp.holdsLock(tid1, p0));
+    }
+
+    /**
+     * Unit test for locks on different pages not conflicting.
+     */
+    @Test public void acquireWriteLocksOnDifferentPages() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        assertTrue(grabLock(tid2, p1, Permissions.READ_WRITE).acquired());
+    }
+
+    /**
+     * Unit test for upgrading the only shared lock on a page.
+     */
+    @Test public void upgradeSharedLock() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        assertTrue(grabLock(tid1, p0, Permissions.READ_WRITE).acquired());
+        assertFalse(grabLock(tid2, p0, Permissions.READ_ONLY).acquired());
+    }
+
+    /**
+     * Unit test for releasePage.
+     */
+    @Test public void releasePage() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        bp.releasePage(tid1, p0);
+        assertFalse(bp.holdsLock(tid1, p0));
+        assertTrue(grabLock(tid2, p0, Permissions.READ_WRITE).acquired());
+    }
+
+    /**
+     * Unit test for a release racing a new request while another transaction
+     * waits: the waiter and the newcomer must not both get the page.
+     */
+    @Test public void releaseWithWaiterAndNewRequest() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber t2 = grabLock(tid2, p0, Permissions.READ_WRITE);
+        assertFalse(t2.acquired());
+
+        bp.releasePage(tid1, p0);
+        TestUtil.LockGrabber t3 = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_WRITE);
+        t3.start();
+        t2.join(TIMEOUT);
+        t3.join(TIMEOUT);
+
+        assertTrue(t2.acquired() ^ t3.acquired());
+        assertEquals(t2.acquired(), bp.holdsLock(tid2, p0));
+        assertEquals(t3.acquired(), bp.holdsLock(tid3, p0));
+
+        // the loser gets the page once the winner is done
+        TestUtil.LockGrabber loser = t2.acquired() ? t3 : t2;
+        bp.transactionComplete(t2.acquired() ? tid2 : tid3);
+        loser.join(TIMEOUT);
+        assertTrue(loser.acquired());
+    }
+
+    /**
+     * Unit test for deadlock detection: two transactions that each hold a
+     * page the other wants. One of them is aborted, the other proceeds once
+     * the victim's locks are released.
+     */
+    @Test public void deadlockAbortsOneTransaction() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        assertTrue(grabLock(tid2, p1, Permissions.READ_WRITE).acquired());
+
+        TestUtil.LockGrabber t1 = grabLock(tid1, p1, Permissions.READ_WRITE);
+        TestUtil.LockGrabber t2 = grabLock(tid2, p0, Permissions.READ_WRITE);
+        t1.join(TIMEOUT * 10);
+        t2.join(TIMEOUT * 10);
+
+        // the victim's LockGrabber aborts it, which lets the other finish
+        assertTrue(t1.getError() instanceof TransactionAbortedException
+                ^ t2.getError() instanceof TransactionAbortedException);
+        assertTrue(t1.acquired() ^ t2.acquired());
+    }
+
+    /**
+     * Unit test for two shared holders upgrading at once.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid2, p0, Permissions.READ_ONLY);
+
+        TestUtil.LockGrabber t1 = grabLock(tid1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber t2 = grabLock(tid2, p0, Permissions.READ_WRITE);
+        t1.join(TIMEOUT * 10);
+        t2.join(TIMEOUT * 10);
+
+        assertTrue(t1.acquired() ^ t2.acquired());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockingTest.class);
+    }
+}
@@ -0,0 +1,181 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PaxPageTest extends SimpleDbTestBase {
+    private HeapPageId pid;
+    private TupleDesc td;
+
+    @Before public void addTable() throws Exception {
+        this.td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+        int tableId = new File(SystemTestUtil.getUUID()).getAbsolutePath().hashCode();
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(tableId, td), SystemTestUtil.getUUID());
+        this.pid = new HeapPageId(tableId, 0);
+    }
+
+    private Tuple tuple(String s, int n) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new StringField(s, Type.STRING_LEN));
+        t.setField(1, new IntField(n));
+        return t;
+    }
+
+    /**
+     * The values of a column are stored together, the stats bound them,
+     * and a field decodes from its own column only.
+     */
+    @Test public void columnsApart() throws Exception {
+        PaxPage page = new PaxPage(pid, HeapPage.createEmptyPageData());
+        int n = PaxPage.numSlots(td);
+        for (int i = 0; i < n; i++) {
+            page.insertTuple(tuple("row " + i, 100 + i));
+        }
+        assertEquals(0, page.getFreeSpace());
+        try {
+            page.insertTuple(tuple("one too many", 0));
+            fail("page should be full; expected DbException");
+        } catch (DbException e) {
+            // explicitly ignored
+        }
+
+        byte[] data = page.getPageData();
+        ByteBuffer image = ByteBuffer.wrap(data);
+        int ints = (n + 7) / 8 + 2 * PaxPage.STATS_SIZE + n * Type.STRING_TYPE.getLen();
+        for (int i = 0; i < n; i++) {
+            assertEquals(100 + i, image.getInt(ints + 4 * i));
+        }
+        // a string length no page could hold; only the string column sees it
+        image.putInt(ints - Type.STRING_TYPE.getLen(), -1);
+
+        PaxPage copy = new PaxPage(pid, data);
+        assertEquals(n, copy.getNumTuples());
+        assertEquals(100, copy.getMin(1));
+        assertEquals(100 + n - 1, copy.getMax(1));
+        Iterator<Tuple> it = copy.iterator();
+        for (int i = 0; i < n; i++) {
+            assertEquals(new IntField(100 + i), it.next().getField(1));
+        }
+    }
+
+    /**
+     * Deletes leave the stats as they are; a page is ruled out only by a
+     * predicate its stats exclude.
+     */
+    @Test public void mayMatch() throws Exception {
+        PaxPage page = new PaxPage(pid, HeapPage.createEmptyPageData());
+        assertFalse(page.mayMatch(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(0))));
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 10; i <= 20; i++) {
+            Tuple t = tuple("row " + i, i);
+            page.insertTuple(t);
+            tuples.add(t);
+        }
+        page.deleteTuple(tuples.get(0));
+        assertEquals(10, page.getMin(1));
+        assertEquals(20, page.getMax(1));
+        assertNull(tuples.get(0).getRecordId());
+        assertEquals(new StringField("row 10", Type.STRING_LEN), tuples.get(0).getField(0));
+
+        assertTrue(page.mayMatch(new Predicate(1, Predicate.Op.EQUALS, new IntField(15))));
+        assertFalse(page.mayMatch(new Predicate(1, Predicate.Op.EQUALS, new IntField(21))));
+        assertFalse(page.mayMatch(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(20))));
+        assertTrue(page.mayMatch(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(20))));
+        assertFalse(page.mayMatch(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(10))));
+        assertTrue(page.mayMatch(new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(10))));
+        // no stats for strings
+        assertTrue(page.mayMatch(new Predicate(0, Predicate.Op.EQUALS, new StringField("x", Type.STRING_LEN))));
+    }
+
+    /**
+     * A wide PAX table written by HeapFileEncoder is aggregated through
+     * SeqScan, inserted into, and scanned past the pages a predicate rules
+     * out, directly and through a Filter over a SeqScan.
+     */
+    @Test public void paxHeapFile() throws Exception {
+        int columns = 20;
+        int rows = 5000;
+        File text = File.createTempFile("pax", ".txt");
+        text.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(text));
+        for (int i = 0; i < rows; i++) {
+            StringBuilder line = new StringBuilder();
+            for (int j = 0; j < columns; j++)
+                line.append(j == 0 ? "" : ",").append(i * columns + j);
+            out.println(line);
+        }
+        out.close();
+        File data = File.createTempFile("pax", ".dat");
+        data.deleteOnExit();
+        Type[] types = Utility.getTypes(columns);
+        HeapFileEncoder.convertPax(text, data, BufferPool.getPageSize(), types, ',');
+
+        TupleDesc wide = new TupleDesc(types);
+        HeapFile hf = new HeapFile(data, wide, HeapFile.Format.PAX, false);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+
+        Aggregate sum = new Aggregate(new SeqScan(tid, hf.getId()), 3, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+        sum.open();
+        long expected = 0;
+        for (int i = 0; i < rows; i++)
+            expected += i * columns + 3;
+        assertEquals(new IntField((int) expected), sum.next().getField(0));
+        sum.close();
+
+        hf.insertTuple(tid, Utility.getHeapTuple(-1, columns));
+        Predicate small = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(columns * 10));
+        DbFileIterator it = hf.iterator(tid, small);
+        it.open();
+        int seen = 0;
+        int matched = 0;
+        while (it.hasNext()) {
+            if (small.filter(it.next()))
+                matched++;
+            seen++;
+        }
+        it.close();
+        // rows 0 to 9, and the tuple inserted
+        assertEquals(11, matched);
+        assertTrue(seen < rows / 10);
+
+        // a Filter passes its predicate down to the scan below it
+        SeqScan scan = new SeqScan(tid, hf.getId());
+        Filter filter = new Filter(small, scan);
+        filter.open();
+        matched = 0;
+        while (filter.hasNext()) {
+            filter.next();
+            matched++;
+        }
+        filter.close();
+        assertEquals(11, matched);
+        scan.open();
+        seen = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            seen++;
+        }
+        scan.close();
+        assertTrue(seen < rows / 10);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxPageTest.class);
+    }
+}
@@ -0,0 +1,159 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    /** Pages in the test table, fewer than the default pool holds. */
+    private static final int PAGES = 20;
+
+    /** Reads a page a little slowly, so read-ahead can catch up with it. */
+    private static class SlowHeapFile extends HeapFile {
+        public SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        protected boolean readsRuns() {
+            return false;
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(1, 992 * PAGES, null, null);
+        bp = Database.getBufferPool();
+    }
+
+    /** Waits until no read of the pages of table is in flight. */
+    private void awaitReads(HeapFile table) throws Exception {
+        for (int i = 0; i < table.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(table.getId(), i);
+            for (int tries = 0; tries < 100 && bp.isLoading(pid); tries++) {
+                Thread.sleep(10);
+            }
+            assertFalse(bp.isLoading(pid));
+        }
+    }
+
+    /**
+     * A first access is not sequential yet; the next page is, and reads the
+     * window of pages that follow it into the pool.
+     */
+    @Test public void sequentialAccessOpensWindow() throws Exception {
+        ReadAhead ra = new ReadAhead(hf.getId());
+        ra.access(5, PAGES);
+        assertEquals(0, ra.getWindow());
+
+        ra.access(6, PAGES);
+        assertEquals(ReadAhead.MIN_WINDOW, ra.getWindow());
+        awaitReads(hf);
+        for (int i = 7; i <= 6 + ReadAhead.MIN_WINDOW; i++) {
+            assertTrue(bp.isResident(new HeapPageId(hf.getId(), i)));
+        }
+        assertFalse(bp.isResident(new HeapPageId(hf.getId(), 7 + ReadAhead.MIN_WINDOW)));
+    }
+
+    /**
+     * Unit test for a jump closing the window.
+     */
+    @Test public void jumpResetsWindow() throws Exception {
+        ReadAhead ra = new ReadAhead(hf.getId());
+        ra.access(0, PAGES);
+        ra.access(1, PAGES);
+        assertTrue(ra.getWindow() > 0);
+
+        ra.access(10, PAGES);
+        assertEquals(0, ra.getWindow());
+        ra.access(11, PAGES);
+        assertEquals(ReadAhead.MIN_WINDOW, ra.getWindow());
+        awaitReads(hf);
+    }
+
+    /**
+     * The window doubles while the scan reaches pages still being read, and
+     * halves when a page read ahead was evicted before the scan got to it.
+     */
+    @Test public void windowGrowsAndShrinks() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992 * PAGES, 1000, null, null);
+        SlowHeapFile slow = new SlowHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(slow, SystemTestUtil.getUUID());
+
+        ReadAhead ra = new ReadAhead(slow.getId());
+        ra.access(0, PAGES);
+        assertEquals(2, ra.getWindow());
+        // pages 1 and 2 are still being read
+        ra.access(1, PAGES);
+        assertEquals(4, ra.getWindow());
+        ra.access(2, PAGES);
+        assertEquals(8, ra.getWindow());
+
+        // the window never outgrows a quarter of the pool
+        assertTrue(ra.getWindow() <= bp.getNumPages() / 4);
+
+        awaitReads(slow);
+        bp.discardPage(new HeapPageId(slow.getId(), 3));
+        ra.access(3, PAGES);
+        assertEquals(4, ra.getWindow());
+        awaitReads(slow);
+    }
+
+    /**
+     * A scan reads ahead: every page ends up in the pool, with fewer reads
+     * than pages since read-ahead reads runs of them.
+     */
+    @Test public void scanPrefetchesIntoPool() throws Exception {
+        BufferPoolStats stats = bp.getStats();
+        stats.reset();
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        bp.transactionComplete(tid);
+        awaitReads(hf);
+
+        assertEquals(992 * PAGES, count);
+        for (int i = 0; i < PAGES; i++) {
+            assertTrue(bp.isResident(new HeapPageId(hf.getId(), i)));
+        }
+        assertTrue(stats.getReads() < PAGES);
+        assertTrue(stats.getHits() > 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
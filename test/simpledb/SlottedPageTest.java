@@ -0,0 +1,149 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedPageTest extends SimpleDbTestBase {
+    private HeapPageId pid;
+    private TupleDesc td;
+
+    @Before public void addTable() throws Exception {
+        this.td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        int tableId = new File(SystemTestUtil.getUUID()).getAbsolutePath().hashCode();
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(tableId, td), SystemTestUtil.getUUID());
+        this.pid = new HeapPageId(tableId, 0);
+    }
+
+    private Tuple tuple(int n, String s) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(n));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    /**
+     * Short strings take their real length, so many more tuples fit on a
+     * page than in fixed size slots.
+     */
+    @Test public void storesStringsAtTheirLength() throws Exception {
+        SlottedPage page = new SlottedPage(pid, HeapPage.createEmptyPageData());
+        int n = 0;
+        while (page.getFreeSpace() >= SlottedPage.spaceFor(td, tuple(n, "name" + n))) {
+            page.insertTuple(tuple(n, "name" + n));
+            n++;
+        }
+        int fixed = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        assertTrue(n > 3 * fixed);
+        try {
+            page.insertTuple(tuple(0, "a string too long for the space left on the page"));
+            fail("page should be full; expected DbException");
+        } catch (DbException e) {
+            // explicitly ignored
+        }
+
+        SlottedPage copy = new SlottedPage(pid, page.getPageData());
+        assertEquals(n, copy.getNumTuples());
+        Iterator<Tuple> it = copy.iterator();
+        for (int i = 0; i < n; i++) {
+            Tuple t = it.next();
+            assertEquals(new IntField(i), t.getField(0));
+            assertEquals(new StringField("name" + i, Type.STRING_LEN), t.getField(1));
+            assertEquals(i, t.getRecordId().tupleno());
+        }
+    }
+
+    /**
+     * Deleting compacts the records; the rest keep their slots and values,
+     * and the space is reused.
+     */
+    @Test public void deleteCompacts() throws Exception {
+        SlottedPage page = new SlottedPage(pid, HeapPage.createEmptyPageData());
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 10; i++) {
+            Tuple t = tuple(i, "value " + i);
+            page.insertTuple(t);
+            tuples.add(t);
+        }
+        int free = page.getFreeSpace();
+        page.deleteTuple(tuples.get(3));
+        page.deleteTuple(tuples.get(7));
+        assertEquals(free + 2 * (SlottedPage.spaceFor(td, tuples.get(3)) - SlottedPage.SLOT_SIZE),
+                page.getFreeSpace());
+
+        SlottedPage copy = new SlottedPage(pid, page.getPageData());
+        assertEquals(8, copy.getNumTuples());
+        Iterator<Tuple> it = copy.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int n = ((IntField) t.getField(0)).getValue();
+            assertTrue(n != 3 && n != 7);
+            assertEquals(n, t.getRecordId().tupleno());
+            assertEquals(new StringField("value " + n, Type.STRING_LEN), t.getField(1));
+        }
+
+        Tuple again = tuple(42, "reused");
+        page.insertTuple(again);
+        assertEquals(3, again.getRecordId().tupleno());
+
+        // deleting the last slots gives back their directory entries too,
+        // along with the empty entry of slot 7 before them
+        free = page.getFreeSpace();
+        int records = SlottedPage.spaceFor(td, tuples.get(8)) + SlottedPage.spaceFor(td, tuples.get(9))
+                - 2 * SlottedPage.SLOT_SIZE;
+        page.deleteTuple(tuples.get(9));
+        page.deleteTuple(tuples.get(8));
+        assertEquals(free + records + 3 * SlottedPage.SLOT_SIZE, page.getFreeSpace());
+    }
+
+    /**
+     * A slotted table written by HeapFileEncoder can be scanned and
+     * inserted into through a HeapFile.
+     */
+    @Test public void slottedHeapFile() throws Exception {
+        File text = File.createTempFile("slotted", ".txt");
+        text.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(text));
+        for (int i = 0; i < 1000; i++)
+            out.println(i + ",row " + i);
+        out.close();
+        File data = File.createTempFile("slotted", ".dat");
+        data.deleteOnExit();
+        HeapFileEncoder.convertSlotted(text, data, BufferPool.getPageSize(), new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, ',');
+
+        HeapFile hf = new HeapFile(data, td, HeapFile.Format.SLOTTED, false);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        // fixed size slots would take 34 pages
+        assertTrue(hf.numPages() < 10);
+
+        TransactionId tid = new TransactionId();
+        hf.insertTuple(tid, tuple(1000, "row 1000"));
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new StringField("row " + ((IntField) t.getField(0)).getValue(), Type.STRING_LEN), t.getField(1));
+            count++;
+        }
+        it.close();
+        assertEquals(1001, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedPageTest.class);
+    }
+}
@@ -29,6 +29,32 @@ public class TupleTest extends SimpleDbTestBase {
         assertEquals(new IntField(37), tup.getField(1));
     }
 
+    /**
+     * A lazy tuple decodes its fields from its bytes when asked for them,
+     * and keeps them once materialized.
+     */
+    @Test public void lazyFields() {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+        assertEquals(4 + Type.STRING_TYPE.getLen(), td.getOffset(2));
+        java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(8 + td.getSize());
+        buf.putInt(8 + td.getOffset(0), 7);
+        buf.putInt(8 + td.getOffset(1), 3);
+        buf.put(8 + td.getOffset(1) + 4, (byte) 'a');
+        buf.put(8 + td.getOffset(1) + 5, (byte) 'b');
+        buf.put(8 + td.getOffset(1) + 6, (byte) 'c');
+        buf.putInt(8 + td.getOffset(2), -5);
+
+        Tuple tup = new Tuple(td, buf, 8);
+        assertEquals(new IntField(-5), tup.getField(2));
+        assertEquals(new StringField("abc", Type.STRING_LEN), tup.getField(1));
+        tup.setField(0, new IntField(1));
+        assertEquals(new IntField(1), tup.getField(0));
+
+        tup.materialize();
+        buf.putInt(8 + td.getOffset(2), 0);
+        assertEquals(new IntField(-5), tup.getField(2));
+    }
+
     /**
      * Unit test for Tuple.getTupleDesc()
      */
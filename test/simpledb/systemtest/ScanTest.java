@@ -77,6 +77,11 @@ public class ScanTest extends SimpleDbTestBase {
                 super(f, td);
             }
 
+            @Override
+            protected boolean readsRuns() {
+                return false;
+            }
+
             @Override
             public Page readPage(PageId pid) throws NoSuchElementException {
                 readCount += 1;
@@ -0,0 +1,111 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.Future;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class VacuumTest extends SimpleDbTestBase {
+
+    /**
+     * Deletes all but every tenth tuple of table, through the buffer pool.
+     * @return the tuples left
+     */
+    private ArrayList<ArrayList<Integer>> thin(HeapFile table) throws Exception {
+        ArrayList<ArrayList<Integer>> left = new ArrayList<ArrayList<Integer>>();
+        List<Tuple> doomed = new ArrayList<Tuple>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        for (int i = 0; it.hasNext(); i++) {
+            Tuple t = it.next();
+            if (i % 10 == 0) {
+                left.add(SystemTestUtil.tupleToList(t));
+            } else {
+                doomed.add(t);
+            }
+        }
+        it.close();
+        for (Tuple t : doomed) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        return left;
+    }
+
+    /**
+     * The tuples left after mass deletes are moved to the front of the file
+     * and the pages emptied are truncated.
+     */
+    @Test public void compactsAndTruncates() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 5 * 504, null, tuples);
+        assertEquals(5, table.numPages());
+        ArrayList<ArrayList<Integer>> left = thin(table);
+
+        Vacuum.Report report = new Vacuum(table).setMeasureScans(true).run();
+        assertEquals(5, report.getPagesBefore());
+        assertEquals(1, report.getPagesAfter());
+        assertEquals(4, report.getPagesReclaimed());
+        assertTrue(report.getTuplesMoved() > 0);
+        assertTrue(report.getScanMillisAfter() >= 0);
+        assertEquals(1, table.numPages());
+        assertEquals(BufferPool.getPageSize(), table.getFile().length());
+        SystemTestUtil.matchTuples(table, left);
+
+        // the moved tuples can be found by their new RecordIds
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(0, t.getRecordId().getPageId().pageNumber());
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        // the file grows again past its truncated end
+        tid = new TransactionId();
+        for (int i = 0; i < 600; i++) {
+            Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(2, table.numPages());
+    }
+
+    /**
+     * A vacuum running in the background is throttled, and a mapped file
+     * only forgets the pages it truncates.
+     */
+    @Test public void throttledOnMappedFile() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 5 * 504, 1 << 16, null, tuples);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        ArrayList<ArrayList<Integer>> left = thin(table);
+
+        long start = System.nanoTime();
+        Future<Vacuum.Report> vacuum = new Vacuum(table).setPagesPerSecond(20).start();
+        Vacuum.Report report = vacuum.get();
+        long ms = (System.nanoTime() - start) / 1000000;
+        assertEquals(4, report.getPagesReclaimed());
+        // at least 5 pages fetched at 20 per second
+        assertTrue(ms >= 200);
+        assertEquals(1, table.numPages());
+        assertEquals(5L * BufferPool.getPageSize(), f.length());
+        SystemTestUtil.matchTuples(table, left);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(VacuumTest.class);
+    }
+}